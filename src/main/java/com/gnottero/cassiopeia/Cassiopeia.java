@@ -2,18 +2,28 @@ package com.gnottero.cassiopeia;
 
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerBlockEntityEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
+import net.fabricmc.fabric.api.transfer.v1.item.ItemStorage;
 import net.minecraft.server.MinecraftServer;
 
 import com.gnottero.cassiopeia.command.CassiopeiaCommands;
+import com.gnottero.cassiopeia.config.CassiopeiaConfig;
 import com.gnottero.cassiopeia.content.block.ModBlocks;
+import com.gnottero.cassiopeia.content.block.entity.BasicControllerBlockEntity;
 import com.gnottero.cassiopeia.content.block.entity.ModBlockEntities;
 import com.gnottero.cassiopeia.content.item.ModItemGroups;
 import com.gnottero.cassiopeia.content.item.ModItems;
 import com.gnottero.cassiopeia.content.machine.MachineHandlerRegistry;
+import com.gnottero.cassiopeia.content.machine.MachineScheduler;
 import com.gnottero.cassiopeia.content.recipe.ModRecipes;
 import com.gnottero.cassiopeia.content.screen.ModScreenHandlers;
 import com.gnottero.cassiopeia.network.StructureHighlightPayload;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
+import com.gnottero.cassiopeia.structures.StructureEvents;
 
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -36,8 +46,30 @@ public class Cassiopeia implements ModInitializer {
     @Override
     public void onInitialize() {
         // ModRegistry.registerCreativeTabs();
+        CassiopeiaConfig.load();
 
         ServerLifecycleEvents.SERVER_STARTED.register(_server -> { server = _server; });
+        ServerLifecycleEvents.SERVER_STARTING.register(_server -> MachineScheduler.startWorkers());
+        ServerLifecycleEvents.SERVER_STOPPING.register(_server -> IncrementalStructureValidator.sealAll()); //! Before the levels are saved
+        ServerLifecycleEvents.SERVER_STOPPED.register(_server -> IncrementalStructureValidator.unregisterAll());
+        ServerLifecycleEvents.SERVER_STOPPED.register(_server -> MachineScheduler.unregisterAll());
+        ServerLifecycleEvents.SERVER_STOPPED.register(_server -> MachineScheduler.stopWorkers());
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((_server, _resourceManager, _success) -> ModRecipes.onRecipesReloaded());
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((_server, _resourceManager, _success) -> MachineScheduler.wakeAll());
+        ServerWorldEvents.LOAD.register((_server, level) -> IncrementalStructureValidator.get(level).loadTombstones());
+        ServerWorldEvents.UNLOAD.register((_server, level) -> IncrementalStructureValidator.remove(level));
+        ServerWorldEvents.UNLOAD.register((_server, level) -> MachineScheduler.remove(level));
+        ServerChunkEvents.CHUNK_LOAD.register((level, chunk) -> IncrementalStructureValidator.get(level).onChunkLoad(chunk));
+        ServerChunkEvents.CHUNK_UNLOAD.register((level, chunk) -> IncrementalStructureValidator.get(level).onChunkUnload(chunk));
+        ServerTickEvents.END_WORLD_TICK.register(level -> IncrementalStructureValidator.get(level).flushChanges());
+        ServerTickEvents.END_WORLD_TICK.register(level -> MachineScheduler.get(level).tick()); //! After the flush, so machines see this tick's structure changes
+        ServerBlockEntityEvents.BLOCK_ENTITY_LOAD.register((blockEntity, level) -> {
+            if(blockEntity instanceof final BasicControllerBlockEntity machine) MachineScheduler.get(level).add(machine);
+        });
+        ServerBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register((blockEntity, level) -> {
+            if(blockEntity instanceof final BasicControllerBlockEntity machine) MachineScheduler.get(level).remove(machine);
+        });
+        StructureEvents.STATE_CHANGED.register((level, controller, state) -> controller.onStructureStateChanged(state));
 
         net.fabricmc.fabric.api.networking.v1.PayloadTypeRegistry.playS2C().register(
             StructureHighlightPayload.TYPE,
@@ -50,6 +82,7 @@ public class Cassiopeia implements ModInitializer {
         ModItems.registerModItems();
         ModBlocks.registerModBlocks();
         ModBlockEntities.registerModBlockEntities();
+        ItemStorage.SIDED.registerForBlockEntity(BasicControllerBlockEntity::getItemStorage, ModBlockEntities.BASIC_CONTROLLER);
         ModScreenHandlers.registerScreenHandlers();
         ModRecipes.registerRecipes();
         MachineHandlerRegistry.init();
@@ -0,0 +1,346 @@
+package com.gnottero.cassiopeia.command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.gnottero.cassiopeia.Cassiopeia;
+import com.gnottero.cassiopeia.content.block.entity.BasicControllerBlockEntity;
+import com.gnottero.cassiopeia.content.machine.MachineHandler;
+import com.gnottero.cassiopeia.content.recipe.AlloyingRecipe;
+import com.gnottero.cassiopeia.content.recipe.AlloyingRecipeInput;
+import com.gnottero.cassiopeia.content.recipe.IngredientWithComponents;
+import com.gnottero.cassiopeia.content.recipe.RecipeIndex;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.fabricmc.fabric.api.transfer.v1.item.ItemVariant;
+import net.fabricmc.fabric.api.transfer.v1.storage.Storage;
+import net.fabricmc.fabric.api.transfer.v1.transaction.Transaction;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.component.DataComponentPatch;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.crafting.Ingredient;
+import net.minecraft.world.item.crafting.RecipeHolder;
+import net.minecraft.world.level.block.entity.HopperBlockEntity;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+
+
+
+
+/**
+ * The /cassiopeia benchmark subcommands, which time the hot paths of the mod on a live server.
+ * <p>
+ * Each benchmark runs a short warm-up pass, then times the measured pass with {@link System#nanoTime()} and reports the cost per operation.
+ * They run on the server thread and block it while they run.
+ */
+public final class BenchmarkCommands {
+    private BenchmarkCommands() {}
+
+    private static final int MAX_COUNT = 10_000_000;
+    private static final int DEFAULT_BLOCK_CHANGES = 1_000_000;
+    private static final int MAX_RECIPES = 100_000;
+    private static final int DEFAULT_RECIPES = 10_000;
+
+    // The number of distinct inputs looked up by the recipe benchmark, and how many times the index looks them up
+    private static final int RECIPE_LOOKUPS = 1_000;
+    private static final int INDEX_ROUNDS = 100;
+
+    private static final int DEFAULT_TRANSFERRED_ITEMS = 100_000;
+
+
+
+
+    public static LiteralArgumentBuilder<CommandSourceStack> build() {
+        return Commands.literal("benchmark")
+            .then(Commands.literal("blockchanges")
+                .executes(ctx -> executeBlockChanges(ctx, DEFAULT_BLOCK_CHANGES))
+                .then(Commands.argument("count", IntegerArgumentType.integer(1, MAX_COUNT))
+                    .executes(ctx -> executeBlockChanges(ctx, IntegerArgumentType.getInteger(ctx, "count")))
+                )
+            )
+            .then(Commands.literal("transfer")
+                .then(Commands.argument("controller", BlockPosArgument.blockPos())
+                    .executes(ctx -> executeTransfer(ctx, DEFAULT_TRANSFERRED_ITEMS))
+                    .then(Commands.argument("count", IntegerArgumentType.integer(1, MAX_COUNT))
+                        .executes(ctx -> executeTransfer(ctx, IntegerArgumentType.getInteger(ctx, "count")))
+                    )
+                )
+            )
+            .then(Commands.literal("recipes")
+                .executes(ctx -> executeRecipes(ctx, DEFAULT_RECIPES))
+                .then(Commands.argument("count", IntegerArgumentType.integer(1, MAX_RECIPES))
+                    .executes(ctx -> executeRecipes(ctx, IntegerArgumentType.getInteger(ctx, "count")))
+                )
+            )
+        ;
+    }
+
+
+
+
+    /**
+     * Times the block change hook with the changes of a busy farm: blocks toggling between air and water in the 16x16x16 cube
+     * that starts at the position of the source.
+     * <p>
+     * The changes go through {@link ServerLevel#setBlocksDirty}, the method the validator hooks into, so no block is actually changed.
+     * Changes inside of a registered structure queue a revalidation of its unchanged blocks at the end of the tick,
+     * and changes inside of the bounding box of an evicted controller discard its tombstone.
+     * @param ctx The command context.
+     * @param count The number of block changes to time.
+     * @return Always 1.
+     */
+    private static int executeBlockChanges(final CommandContext<CommandSourceStack> ctx, final int count) {
+        final ServerLevel level = ctx.getSource().getLevel();
+        final BlockPos origin = BlockPos.containing(ctx.getSource().getPosition());
+        final IncrementalStructureValidator validator = IncrementalStructureValidator.get(level);
+
+        runBlockChanges(level, origin, count / 10 + 1);
+        final long checkedBefore = validator.getPaletteCheckedChanges();
+        final long start = System.nanoTime();
+        runBlockChanges(level, origin, count);
+        final long elapsed = System.nanoTime() - start;
+        final long checked = validator.getPaletteCheckedChanges() - checkedBefore;
+
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.benchmark.block_changes", count, formatMillis(elapsed), formatNanosPerOp(elapsed, count), checked),
+        false);
+        return 1;
+    }
+
+
+    private static void runBlockChanges(final ServerLevel level, final BlockPos origin, final int count) {
+        final BlockState air = Blocks.AIR.defaultBlockState();
+        final BlockState water = Blocks.WATER.defaultBlockState();
+        final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        for(int i = 0; i < count; ++i) {
+            pos.set(origin.getX() + (i & 15), origin.getY() + ((i >> 4) & 15), origin.getZ() + ((i >> 8) & 15));
+            final boolean filling = ((i >> 12) & 1) == 0;
+            level.setBlocksDirty(pos, filling ? air : water, filling ? water : air);
+        }
+    }
+
+
+
+
+    /**
+     * Times alloying recipe lookups with the {@link RecipeIndex} against the linear scan of the recipe manager,
+     * using synthetic recipes that each take a different pair of items.
+     * <p>
+     * The recipes are not registered: the benchmark builds its own tables, so the recipes of the server are not affected.
+     * Half of the lookups have the inputs in the swapped slot order, and every lookup matches a recipe.
+     * @param ctx The command context.
+     * @param count The number of synthetic recipes.
+     * @return Always 1.
+     */
+    private static int executeRecipes(final CommandContext<CommandSourceStack> ctx, final int count) {
+        final ServerLevel level = ctx.getSource().getLevel();
+        final List<RecipeHolder<AlloyingRecipe>> recipes = createAlloyingRecipes(count);
+        final RecipeIndex.Tables tables = new RecipeIndex.Tables(recipes);
+
+        // Spread the lookups over the recipes, as the linear scan is faster for the first ones
+        final AlloyingRecipeInput[] inputs = new AlloyingRecipeInput[RECIPE_LOOKUPS];
+        for(int i = 0; i < inputs.length; i++) {
+            final AlloyingRecipe recipe = recipes.get((int) ((long) i * count / inputs.length)).value();
+            final ItemStack a = new ItemStack(recipe.getInputA().ingredient().items().findFirst().orElseThrow());
+            final ItemStack b = new ItemStack(recipe.getInputB().ingredient().items().findFirst().orElseThrow());
+            inputs[i] = (i & 1) == 0 ? new AlloyingRecipeInput(a, b) : new AlloyingRecipeInput(b, a);
+        }
+
+        // Time the index, then the linear scan, counting the lookups where they disagree
+        tables.findAlloying(inputs[0], level);
+        final long indexStart = System.nanoTime();
+        for(int round = 0; round < INDEX_ROUNDS; round++) {
+            for(final AlloyingRecipeInput input : inputs) {
+                tables.findAlloying(input, level);
+            }
+        }
+        final long indexElapsed = System.nanoTime() - indexStart;
+
+        int mismatches = 0;
+        final long scanStart = System.nanoTime();
+        for(final AlloyingRecipeInput input : inputs) {
+            if(scan(recipes, input, level) != tables.findAlloying(input, level).orElse(null)) {
+                ++mismatches;
+            }
+        }
+        final long scanElapsed = System.nanoTime() - scanStart;
+
+        final long indexLookups = (long) INDEX_ROUNDS * inputs.length;
+        final String speedup = String.format("%.0f", ((double) scanElapsed / inputs.length) / Math.max(1.0, (double) indexElapsed / indexLookups));
+        final int finalMismatches = mismatches;
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.benchmark.recipes", count,
+                formatNanosPerOp(indexElapsed, indexLookups), formatNanosPerOp(scanElapsed, inputs.length), speedup, finalMismatches),
+        false);
+        return 1;
+    }
+
+
+    /**
+     * Creates alloying recipes that each take a different unordered pair of items.
+     * Recipe k pairs the item k % n with the item (k / n + 1) positions after it, so no two recipes share a pair while count < n * n / 2.
+     * @param count The number of recipes.
+     * @return The recipes.
+     */
+    private static @NotNull List<RecipeHolder<AlloyingRecipe>> createAlloyingRecipes(final int count) {
+        final List<Item> items = BuiltInRegistries.ITEM.stream().filter(item -> item != Items.AIR).toList();
+        final int n = items.size();
+        final List<RecipeHolder<AlloyingRecipe>> recipes = new ArrayList<>(count);
+        for(int k = 0; k < count; k++) {
+            final Item a = items.get(k % n);
+            final Item b = items.get((k % n + k / n + 1) % n);
+            final AlloyingRecipe recipe = new AlloyingRecipe("",
+                new IngredientWithComponents(Ingredient.of(a), 1, DataComponentPatch.EMPTY),
+                new IngredientWithComponents(Ingredient.of(b), 1, DataComponentPatch.EMPTY),
+                new ItemStack(Items.IRON_INGOT), 0, 200
+            );
+            recipes.add(new RecipeHolder<>(ResourceKey.create(Registries.RECIPE, Identifier.fromNamespaceAndPath(Cassiopeia.MOD_ID, "benchmark/alloying_" + k)), recipe));
+        }
+        return recipes;
+    }
+
+
+    /**
+     * Returns the first recipe that matches the inputs, testing every recipe like the recipe manager does.
+     */
+    private static @Nullable RecipeHolder<AlloyingRecipe> scan(final @NotNull List<RecipeHolder<AlloyingRecipe>> recipes, final @NotNull AlloyingRecipeInput input, final @NotNull ServerLevel level) {
+        for(final RecipeHolder<AlloyingRecipe> holder : recipes) {
+            if(holder.value().matches(input, level)) {
+                return holder;
+            }
+        }
+        return null;
+    }
+
+
+
+
+    /**
+     * Times moving items into the top of a machine the way hoppers do, one item per {@link HopperBlockEntity#addItem} call
+     * through the WorldlyContainer methods, against moving whole stacks through its Transfer API storage.
+     * <p>
+     * Cobblestone is inserted until the top slots are full, then they're emptied and the insertion continues.
+     * The inventory and the machine data are restored afterwards.
+     * @param ctx The command context.
+     * @param count The number of items to move with each path.
+     * @return 1 if the command succeeded, 0 otherwise.
+     */
+    private static int executeTransfer(final CommandContext<CommandSourceStack> ctx, final int count) throws CommandSyntaxException {
+        final BlockPos controller = BlockPosArgument.getLoadedBlockPos(ctx, "controller");
+        final ServerLevel level = ctx.getSource().getLevel();
+        if(!(level.getBlockEntity(controller) instanceof final BasicControllerBlockEntity machine) || machine.getHandler().isEmpty()) {
+            ctx.getSource().sendFailure(Component.translatable("command.cassiopeia.eject.not_machine", controller.getX(), controller.getY(), controller.getZ()));
+            return 0;
+        }
+        final MachineHandler handler = machine.getHandler().get();
+        final Storage<ItemVariant> storage = machine.getItemStorage(Direction.UP);
+        final int[] slots = handler.getSlotsForFace(Direction.UP);
+
+        // Save the machine to restore it afterwards
+        final List<ItemStack> savedItems = machine.getMachineItems().stream().map(ItemStack::copy).toList();
+        final int[] savedData = new int[handler.getDataCount()];
+        for(int i = 0; i < savedData.length; i++) {
+            savedData[i] = machine.getMachineData(i);
+        }
+
+        // Time the hopper path, then the Transfer API
+        clearSlots(machine, slots);
+        final long hopperStart = System.nanoTime();
+        final long hopperMoved = insertLikeHoppers(machine, slots, count);
+        final long hopperElapsed = System.nanoTime() - hopperStart;
+
+        clearSlots(machine, slots);
+        final long transferStart = System.nanoTime();
+        final long transferMoved = insertStacks(machine, storage, slots, count);
+        final long transferElapsed = System.nanoTime() - transferStart;
+
+        for(int i = 0; i < savedItems.size(); i++) {
+            machine.setItem(i, savedItems.get(i));
+        }
+        for(int i = 0; i < savedData.length; i++) {
+            machine.setMachineData(i, savedData[i]);
+        }
+
+        final String speedup = String.format("%.1f", ((double) hopperElapsed / Math.max(1, hopperMoved)) / Math.max(1.0, (double) transferElapsed / Math.max(1, transferMoved)));
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.benchmark.transfer",
+                hopperMoved, formatNanosPerOp(hopperElapsed, hopperMoved), transferMoved, formatNanosPerOp(transferElapsed, transferMoved), speedup),
+        false);
+        return 1;
+    }
+
+
+    private static long insertLikeHoppers(final @NotNull BasicControllerBlockEntity machine, final int @NotNull [] slots, final int count) {
+        long moved = 0;
+        for(int i = 0; i < count; i++) {
+            if(!HopperBlockEntity.addItem(null, machine, new ItemStack(Items.COBBLESTONE), Direction.UP).isEmpty()) {
+                clearSlots(machine, slots);
+                if(!HopperBlockEntity.addItem(null, machine, new ItemStack(Items.COBBLESTONE), Direction.UP).isEmpty()) break; //! The machine doesn't accept cobblestone
+            }
+            ++moved;
+        }
+        return moved;
+    }
+
+
+    private static long insertStacks(final @NotNull BasicControllerBlockEntity machine, final @Nullable Storage<ItemVariant> storage, final int @NotNull [] slots, final int count) {
+        if(storage == null) return 0;
+        final ItemVariant cobblestone = ItemVariant.of(Items.COBBLESTONE);
+        long moved = 0;
+        boolean cleared = true;
+        while(moved < count) {
+            final long inserted;
+            try(Transaction transaction = Transaction.openOuter()) {
+                inserted = storage.insert(cobblestone, Math.min(count - moved, Items.COBBLESTONE.getDefaultMaxStackSize()), transaction);
+                transaction.commit();
+            }
+            if(inserted == 0) {
+                if(cleared) break; //! The machine doesn't accept cobblestone
+                clearSlots(machine, slots);
+                cleared = true;
+            }
+            else {
+                moved += inserted;
+                cleared = false;
+            }
+        }
+        return moved;
+    }
+
+
+    private static void clearSlots(final @NotNull BasicControllerBlockEntity machine, final int @NotNull [] slots) {
+        for(final int slot : slots) {
+            machine.removeItemNoUpdate(slot);
+        }
+    }
+
+
+
+
+    static String formatMillis(final long nanos) {
+        return String.format("%.1f", nanos / 1_000_000.0);
+    }
+
+
+    static String formatNanosPerOp(final long nanos, final long count) {
+        return String.format("%.1f", (double) nanos / Math.max(1, count));
+    }
+}
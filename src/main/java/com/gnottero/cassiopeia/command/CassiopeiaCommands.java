@@ -2,10 +2,16 @@ package com.gnottero.cassiopeia.command;
 
 import java.util.Optional;
 
+import com.gnottero.cassiopeia.config.CassiopeiaConfig;
+import com.gnottero.cassiopeia.content.block.entity.BasicControllerBlockEntity;
+import com.gnottero.cassiopeia.content.machine.MachineScheduler;
+import com.gnottero.cassiopeia.content.recipe.RecipeIndex;
 import com.gnottero.cassiopeia.structures.InvalidStructureException;
 import com.gnottero.cassiopeia.structures.Structure;
 import com.gnottero.cassiopeia.structures.StructureManager;
 import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator.ValidationState;
+import com.gnottero.cassiopeia.utils.Utils;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.BoolArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
@@ -16,7 +22,11 @@ import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
 import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerLevel;
+
+import org.joml.Vector3i;
 
 
 
@@ -45,6 +55,24 @@ public class CassiopeiaCommands {
                     )
                 )
             )
+            .then(Commands.literal("stats")
+                .executes(CassiopeiaCommands::executeStats)
+            )
+            .then(BenchmarkCommands.build())
+            .then(Commands.literal("eject")
+                .then(Commands.argument("controller", BlockPosArgument.blockPos())
+                    .then(Commands.literal("off")
+                        .executes(ctx -> executeEject(ctx, false, false))
+                    )
+                    .then(Commands.argument("side", StringArgumentType.word())
+                        .suggests(SUGGEST_SIDES)
+                        .executes(ctx -> executeEject(ctx, true, false))
+                        .then(Commands.argument("port", BlockPosArgument.blockPos())
+                            .executes(ctx -> executeEject(ctx, true, true))
+                        )
+                    )
+                )
+            )
             .then(Commands.literal("verify")
                 .then(Commands.argument("controller", BlockPosArgument.blockPos())
                     .then(Commands.argument("identifier", StringArgumentType.word())
@@ -67,6 +95,14 @@ public class CassiopeiaCommands {
     };
 
 
+    private static final com.mojang.brigadier.suggestion.SuggestionProvider<CommandSourceStack> SUGGEST_SIDES = (ctx, builder) -> {
+        for(final Direction direction : Direction.values()) {
+            builder.suggest(direction.getName());
+        }
+        return builder.buildFuture();
+    };
+
+
 
 
     /**
@@ -121,8 +157,9 @@ public class CassiopeiaCommands {
 
 
         // If the structure is valid, send the player the success message
-        final boolean matches = IncrementalStructureValidator.validateStructure(ctx.getSource().getLevel(), controller);
-        if(matches) {
+        final ServerLevel level = ctx.getSource().getLevel();
+        final ValidationState state = IncrementalStructureValidator.get(level).getValidationState(controller, level.getBlockEntity(controller));
+        if(state == ValidationState.VALID) {
             ctx.getSource().sendSuccess(
                 () -> Component.translatable("command.cassiopeia.structure.verified")
                 .withStyle(net.minecraft.ChatFormatting.GREEN),
@@ -131,6 +168,16 @@ public class CassiopeiaCommands {
         }
 
 
+        // If part of the structure was never loaded, tell the player it can't be verified yet
+        else if(state == ValidationState.NOT_LOADED) {
+            ctx.getSource().sendSuccess(
+                () -> Component.translatable("command.cassiopeia.structure.not_loaded")
+                .withStyle(net.minecraft.ChatFormatting.YELLOW),
+            false);
+            return 0;
+        }
+
+
         // If the structure is not valid, send the player an error
         else {
             ctx.getSource().sendSuccess(
@@ -140,4 +187,106 @@ public class CassiopeiaCommands {
             return 0;
         }
     }
+
+
+
+
+
+    /**
+     * Executes the eject command.
+     * @param ctx The command context.
+     * @param enable Whether to enable the output stage or disable it.
+     * @param hasPort Whether a port was specified. Ports must be within the bounds of the machine's structure.
+     * @return 1 if the command succeeded, 0 otherwise.
+     */
+    private static int executeEject(final CommandContext<CommandSourceStack> ctx, final boolean enable, final boolean hasPort) throws CommandSyntaxException {
+        final BlockPos controller = BlockPosArgument.getLoadedBlockPos(ctx, "controller");
+        final ServerLevel level = ctx.getSource().getLevel();
+        if(!(level.getBlockEntity(controller) instanceof final BasicControllerBlockEntity machine) || machine.getHandler().isEmpty()) {
+            ctx.getSource().sendFailure(Component.translatable("command.cassiopeia.eject.not_machine", controller.getX(), controller.getY(), controller.getZ()));
+            return 0;
+        }
+
+
+        // Disable the output stage
+        if(!enable) {
+            machine.setEjectTarget(null, null);
+            ctx.getSource().sendSuccess(() -> Component.translatable("command.cassiopeia.eject.disabled"), false);
+            return 1;
+        }
+
+
+        // Check the side
+        final String sideName = StringArgumentType.getString(ctx, "side");
+        final Direction side = Direction.byName(sideName);
+        if(side == null) {
+            ctx.getSource().sendFailure(Component.translatable("command.cassiopeia.eject.invalid_side", sideName));
+            return 0;
+        }
+
+
+        // Convert the port to local coordinates and check that it's part of the structure
+        if(hasPort) {
+            final BlockPos port = BlockPosArgument.getLoadedBlockPos(ctx, "port");
+            final Vector3i local = Utils.globalToLocal(port, controller, Structure.getControllerFacing(machine.getBlockState()));
+            final Optional<Structure> structure = StructureManager.getStructure(machine.getStructureId());
+            if(structure.isEmpty() || !isInBounds(structure.get(), local)) {
+                ctx.getSource().sendFailure(Component.translatable("command.cassiopeia.eject.invalid_port"));
+                return 0;
+            }
+            machine.setEjectTarget(side, local);
+            ctx.getSource().sendSuccess(() -> Component.translatable("command.cassiopeia.eject.set_port", side.getName(), port.getX(), port.getY(), port.getZ()), false);
+            return 1;
+        }
+
+        machine.setEjectTarget(side, null);
+        ctx.getSource().sendSuccess(() -> Component.translatable("command.cassiopeia.eject.set", side.getName()), false);
+        return 1;
+    }
+
+
+    private static boolean isInBounds(final Structure structure, final Vector3i local) {
+        structure.ensureInitialized();
+        final Vector3i min = structure.getMinCorner();
+        final Vector3i max = structure.getMaxCorner();
+        return local.x >= min.x && local.y >= min.y && local.z >= min.z && local.x <= max.x && local.y <= max.y && local.z <= max.z;
+    }
+
+
+
+
+
+    /**
+     * Executes the stats command.
+     * @param ctx The command context.
+     * @return Always 1.
+     */
+    private static int executeStats(final CommandContext<CommandSourceStack> ctx) {
+        final IncrementalStructureValidator validator = IncrementalStructureValidator.get(ctx.getSource().getLevel());
+        final long skipped = validator.getPaletteSkippedChanges();
+        final long total = skipped + validator.getPaletteCheckedChanges();
+        final String hitRate = total == 0 ? "0.0" : String.format("%.1f", skipped * 100.0 / total);
+
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.stats.palette", skipped, total, hitRate, validator.getPaletteSize()),
+        false);
+
+        final int controllers = validator.getControllerCount();
+        final long flagBytes = validator.getFlagBytes();
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.stats.controllers", controllers, flagBytes, controllers == 0 ? 0 : flagBytes / controllers),
+        false);
+
+        final MachineScheduler scheduler = MachineScheduler.get(ctx.getSource().getLevel());
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.stats.machines", scheduler.getActiveCount(), scheduler.getSleepingCount()),
+        false);
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.stats.budget", CassiopeiaConfig.get().getMachineTickBudgetMicros(), scheduler.getBudgetMicros(), scheduler.getOverBudgetTickCount(), scheduler.getDeferredTickCount(), scheduler.getDeferredCount()),
+        false);
+        ctx.getSource().sendSuccess(
+            () -> Component.translatable("command.cassiopeia.stats.recipes", RecipeIndex.getCrushingItemCount(), RecipeIndex.getAlloyingPairCount(), RecipeIndex.getMaxCandidates()),
+        false);
+        return 1;
+    }
 }
@@ -0,0 +1,107 @@
+package com.gnottero.cassiopeia.config;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.gnottero.cassiopeia.Cassiopeia;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+
+
+
+/**
+ * The server-side settings of the mod, stored in config/cassiopeia/config.json.
+ * <p>
+ * Missing files are created with the default values. Missing entries keep their default value.
+ */
+public final class CassiopeiaConfig {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final File CONFIG_FILE = FabricLoader.getInstance().getConfigDir().resolve("cassiopeia/config.json").toFile();
+
+    private static CassiopeiaConfig instance = new CassiopeiaConfig();
+
+    // The most time the machines of each level can use per tick, in microseconds. Machines that don't fit are deferred to later ticks. 0 disables the budget.
+    // When the server lags, the budget shrinks to the level's share of the time left in the tick by everything but the machines
+    private int machineTickBudgetMicros = 2_000;
+
+    // The time the machines of each level can use per tick however much the server lags, in microseconds
+    private int minMachineTickBudgetMicros = 250;
+
+    // The number of evicted controllers each level remembers. The oldest ones are forgotten first and rescanned when they are loaded again
+    private int maxTombstonesPerLevel = 16_384;
+
+    private CassiopeiaConfig() {}
+
+
+
+
+    public static @NotNull CassiopeiaConfig get() {
+        return instance;
+    }
+
+
+    /**
+     * Loads the config file, creating it with the default values if it doesn't exist.
+     * Invalid files are logged and ignored.
+     */
+    public static void load() {
+        if(CONFIG_FILE.exists()) {
+            try(Reader reader = new FileReader(CONFIG_FILE)) {
+                final CassiopeiaConfig loaded = GSON.fromJson(reader, CassiopeiaConfig.class);
+                if(loaded != null) {
+                    instance = loaded;
+                }
+            } catch(final IOException | JsonParseException e) {
+                Cassiopeia.LOGGER.error("Failed to read {}, using the default config", CONFIG_FILE, e);
+            }
+            return;
+        }
+
+        CONFIG_FILE.getParentFile().mkdirs();
+        try(Writer writer = new FileWriter(CONFIG_FILE)) {
+            GSON.toJson(instance, writer);
+        } catch(final IOException e) {
+            Cassiopeia.LOGGER.error("Failed to write {}", CONFIG_FILE, e);
+        }
+    }
+
+
+
+
+    /**
+     * Returns the time the machines of each level can use per tick.
+     * @return The budget in nanoseconds, or 0 if the budget is disabled.
+     */
+    public long getMachineTickBudgetNanos() {
+        return Math.max(0, machineTickBudgetMicros) * 1000L;
+    }
+
+
+    public int getMachineTickBudgetMicros() {
+        return Math.max(0, machineTickBudgetMicros);
+    }
+
+
+    /**
+     * Returns the time the machines of each level can use per tick when the server lags.
+     * @return The budget in nanoseconds.
+     */
+    public long getMinMachineTickBudgetNanos() {
+        return Math.max(0, minMachineTickBudgetMicros) * 1000L;
+    }
+
+
+    public int getMaxTombstonesPerLevel() {
+        return Math.max(0, maxTombstonesPerLevel);
+    }
+}
@@ -6,6 +6,7 @@ import com.gnottero.cassiopeia.structures.Structure;
 import com.gnottero.cassiopeia.structures.Structure.StructureError;
 import com.gnottero.cassiopeia.structures.StructureManager;
 import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator.ValidationState;
 import com.mojang.serialization.MapCodec;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -24,6 +25,7 @@ import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.MutableComponent;
 import net.minecraft.resources.Identifier;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.InteractionHand;
 import net.minecraft.world.InteractionResult;
@@ -90,13 +92,13 @@ public abstract class AbstractControllerBlock extends BaseEntityBlock {
         @NotNull final InteractionHand hand,
         @NotNull final BlockHitResult hitResult
     ) {
-        if(level.isClientSide()) {
+        if(!(level instanceof final ServerLevel serverLevel)) {
             return InteractionResult.SUCCESS;
         }
 
         final BlockEntity be = level.getBlockEntity(pos);
         if(be instanceof final AbstractControllerBlockEntity controllerBE) {
-            return handleStructureInteraction(level, pos, player, controllerBE);
+            return handleStructureInteraction(serverLevel, pos, player, controllerBE);
         }
         return InteractionResult.PASS;
     }
@@ -104,7 +106,7 @@ public abstract class AbstractControllerBlock extends BaseEntityBlock {
 
 
 
-    private InteractionResult handleStructureInteraction(final Level level, final BlockPos pos, final Player player, final AbstractControllerBlockEntity controllerBE) {
+    private InteractionResult handleStructureInteraction(final ServerLevel level, final BlockPos pos, final Player player, final AbstractControllerBlockEntity controllerBE) {
         final String structureId = controllerBE.getStructureId();
 
         // Make sure the structure ID is set
@@ -121,11 +123,14 @@ public abstract class AbstractControllerBlock extends BaseEntityBlock {
         }
 
         // Check if the structure is intact, proceed accordingly
-        final List<StructureError> errors = IncrementalStructureValidator.computeValidationErrors(level, pos, controllerBE);
-        if(errors.isEmpty()) {
-            handleValidationSuccess(player, controllerBE);
-        } else {
+        final IncrementalStructureValidator validator = IncrementalStructureValidator.get(level);
+        final List<StructureError> errors = validator.computeValidationErrors(pos, controllerBE);
+        if(!errors.isEmpty()) {
             handleValidationFailure(player, structureId, errors);
+        } else if(validator.getValidationState(pos, controllerBE) == ValidationState.NOT_LOADED) {
+            sendErrorMessage(player, "Structure " + formatStructureName(structureId) + " incomplete: not loaded.");
+        } else {
+            handleValidationSuccess(player, controllerBE);
         }
 
         return InteractionResult.SUCCESS;
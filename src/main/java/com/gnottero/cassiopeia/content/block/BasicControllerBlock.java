@@ -6,11 +6,8 @@ import com.gnottero.cassiopeia.content.machine.MachineHandlerRegistry;
 import com.mojang.serialization.MapCodec;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.entity.player.Player;
-import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.BaseEntityBlock;
 import net.minecraft.world.level.block.entity.BlockEntity;
-import net.minecraft.world.level.block.entity.BlockEntityTicker;
-import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.state.BlockState;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -39,20 +36,6 @@ public class BasicControllerBlock extends AbstractControllerBlock {
     }
 
 
-    @Override
-    @SuppressWarnings("java:S2638")
-    public @Nullable <T extends BlockEntity> BlockEntityTicker<T> getTicker(@NotNull final Level level, @NotNull final BlockState state, @NotNull final BlockEntityType<T> type) {
-        if(level.isClientSide()) {
-            return null;
-        }
-        return (lvl, pos, st, be) -> {
-            if(be instanceof final BasicControllerBlockEntity controllerBE) {
-                BasicControllerBlockEntity.serverTick(lvl, pos, st, controllerBE);
-            }
-        };
-    }
-
-
     @Override
     protected void openGui(final Player player, final AbstractControllerBlockEntity be) {
         final String structureId = be.getStructureId();
@@ -1,6 +1,8 @@
 package com.gnottero.cassiopeia.content.block.entity;
 
 import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
+import com.gnottero.cassiopeia.structures.StructureEvents.StructureState;
+import com.gnottero.cassiopeia.structures.ValiditySnapshot;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.HolderLookup;
@@ -8,6 +10,7 @@ import net.minecraft.nbt.CompoundTag;
 import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.game.ClientGamePacketListener;
 import net.minecraft.network.protocol.game.ClientboundBlockEntityDataPacket;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.state.BlockState;
@@ -24,7 +27,20 @@ import org.jetbrains.annotations.Nullable;
 public abstract class AbstractControllerBlockEntity extends BlockEntity {
 
     private static final String STRUCTURE_ID_KEY = "structure_id";
+    private static final String VALIDITY_SNAPSHOT_KEY = "validity_snapshot";
     private String structureId = Strings.EMPTY;
+
+    // The validity flags saved when the controller was evicted or sealed, or loaded from disk. Consumed when the controller is registered
+    private @Nullable ValiditySnapshot validitySnapshot = null;
+
+    // Whether the controller was last registered from a snapshot that still held, i.e. no block of the structure changed while it was unloaded
+    private boolean restoredFromSnapshot = false;
+
+    // Whether the tag being written is sent to clients, which skips the validity snapshot
+    private boolean writingUpdateTag = false;
+
+    // The last state published by the validator. Kept up to date by StructureEvents.STATE_CHANGED
+    private @NotNull StructureState structureState = StructureState.UNREGISTERED;
     // private boolean registered = false; //TODO remove
 
 
@@ -46,12 +62,38 @@ public abstract class AbstractControllerBlockEntity extends BlockEntity {
     }
 
 
+    public @Nullable ValiditySnapshot getValiditySnapshot() {
+        return validitySnapshot;
+    }
+
+
+    public void setValiditySnapshot(final @Nullable ValiditySnapshot snapshot) {
+        this.validitySnapshot = snapshot;
+    }
+
+
+    public boolean wasRestoredFromSnapshot() {
+        return restoredFromSnapshot;
+    }
+
+
+    public void setRestoredFromSnapshot(final boolean restored) {
+        this.restoredFromSnapshot = restored;
+    }
+
+
     @Override
     protected void saveAdditional(@NotNull final ValueOutput output) {
         super.saveAdditional(output);
         if(!structureId.isEmpty()) {
             output.putString(STRUCTURE_ID_KEY, structureId);
         }
+
+        // Save the validity flags so the structure doesn't need to be rescanned when it's loaded again. Clients don't need them.
+        // Registered controllers only have a snapshot after the validator sealed them, when the server started stopping
+        if(!writingUpdateTag && validitySnapshot != null) {
+            output.store(VALIDITY_SNAPSHOT_KEY, CompoundTag.CODEC, validitySnapshot.toTag());
+        }
     }
 
 
@@ -59,6 +101,7 @@ public abstract class AbstractControllerBlockEntity extends BlockEntity {
     protected void loadAdditional(@NotNull final ValueInput input) {
         super.loadAdditional(input);
         this.structureId = input.getStringOr(STRUCTURE_ID_KEY, Strings.EMPTY);
+        this.validitySnapshot = input.read(VALIDITY_SNAPSHOT_KEY, CompoundTag.CODEC).map(ValiditySnapshot::fromTag).orElse(null);
     }
 
 
@@ -71,20 +114,57 @@ public abstract class AbstractControllerBlockEntity extends BlockEntity {
 
     @Override
     public @NotNull CompoundTag getUpdateTag(final HolderLookup.@NotNull Provider registries) {
-        return this.saveWithoutMetadata(registries);
+        writingUpdateTag = true;
+        try {
+            return this.saveWithoutMetadata(registries);
+        } finally {
+            writingUpdateTag = false;
+        }
+    }
+
+
+
+
+    public @NotNull StructureState getStructureState() {
+        return structureState;
     }
 
 
+    /**
+     * Checks if the last state published by the validator is {@link StructureState#FORMED}, without registering the controller.
+     * @return True if the structure is formed, false otherwise.
+     */
+    public boolean isStructureFormed() {
+        return structureState == StructureState.FORMED;
+    }
+
+
+    /**
+     * Called by the validator's {@link com.gnottero.cassiopeia.structures.StructureEvents#STATE_CHANGED} listener.
+     * @param state The new state of the structure.
+     */
+    public void onStructureStateChanged(final @NotNull StructureState state) {
+        this.structureState = state;
+    }
 
 
+    /**
+     * Checks if the structure is formed using the last state published by the validator.
+     * <p>
+     * This doesn't flush pending block changes, so it can lag one tick behind. Use {@link IncrementalStructureValidator#validateStructure} for an up to date result.
+     * @return True if the structure is formed, false otherwise.
+     */
     public boolean verifyStructure() {
-        //! ensureRegistered is called by validateStructure
-        return IncrementalStructureValidator.validateStructure(level, getBlockPos(), this);
+        ensureRegistered();
+        return isStructureFormed();
     }
 
     public void ensureRegistered() {
-        if(!IncrementalStructureValidator.isRegistered(level, getBlockPos()) && level != null && !level.isClientSide()) {
-            IncrementalStructureValidator.registerController(level, getBlockPos());
+        if(structureState == StructureState.UNREGISTERED && level instanceof final ServerLevel serverLevel) {
+            final IncrementalStructureValidator validator = IncrementalStructureValidator.get(serverLevel);
+            if(!validator.isRegistered(getBlockPos())) {
+                validator.registerController(getBlockPos());
+            }
         }
     }
 }
@@ -2,8 +2,20 @@ package com.gnottero.cassiopeia.content.block.entity;
 
 import com.gnottero.cassiopeia.content.machine.MachineHandler;
 import com.gnottero.cassiopeia.content.machine.MachineHandlerRegistry;
+import com.gnottero.cassiopeia.content.machine.MachineScheduler;
+import com.gnottero.cassiopeia.content.recipe.ModRecipes;
+import com.gnottero.cassiopeia.content.recipe.RecipeIndex;
+import com.gnottero.cassiopeia.structures.Structure;
+import com.gnottero.cassiopeia.structures.StructureEvents.StructureState;
+import com.gnottero.cassiopeia.utils.Utils;
+import com.mojang.serialization.Codec;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.fabricmc.fabric.api.lookup.v1.block.BlockApiCache;
 import net.fabricmc.fabric.api.screenhandler.v1.ExtendedScreenHandlerFactory;
+import net.fabricmc.fabric.api.transfer.v1.item.ItemStorage;
+import net.fabricmc.fabric.api.transfer.v1.item.ItemVariant;
+import net.fabricmc.fabric.api.transfer.v1.storage.Storage;
+import net.fabricmc.fabric.api.transfer.v1.storage.StorageUtil;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.NonNullList;
@@ -24,14 +36,17 @@ import net.minecraft.world.inventory.ContainerData;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.crafting.Recipe;
 import net.minecraft.world.item.crafting.RecipeHolder;
-import net.minecraft.world.level.Level;
+import net.minecraft.world.item.crafting.RecipeInput;
+import net.minecraft.world.item.crafting.RecipeType;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.storage.ValueInput;
 import net.minecraft.world.level.storage.ValueOutput;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.joml.Vector3i;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -54,26 +69,62 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
     private static final String TAG_ITEMS = "Items";
     private static final String TAG_RECIPES_USED = "RecipesUsed";
+    private static final String TAG_CURRENT_RECIPE = "CurrentRecipe";
+    private static final String TAG_NEXT_TICK = "NextTick";
+    private static final String TAG_EJECT_SIDE = "EjectSide";
+    private static final String TAG_EJECT_PORT = "EjectPort";
+    private static final Codec<ResourceKey<Recipe<?>>> RECIPE_KEY_CODEC = ResourceKey.codec(Registries.RECIPE);
 
     private final NonNullList<ItemStack> machineItems = NonNullList.withSize(MAX_SLOT_COUNT, ItemStack.EMPTY);
     private final int[] machineData = new int[MAX_DATA_COUNT];
+
+    // The first game tick that wasn't applied to the machine when it was saved, or -1. Set when loaded from NBT until the missed ticks are simulated
+    private long unloadedTick = -1;
+
+    // Incremented every time the machine is woken, i.e. every time something that could change its next tick changes
+    private int modificationCount = 0;
+
+    // The columns of the scheduler group that holds the machine data while the machine is active, and the index of this machine in them
+    private int @Nullable [][] dataColumns = null;
+    private int dataSlot = 0;
     private final Object2IntOpenHashMap<Identifier> recipesUsed = new Object2IntOpenHashMap<>();
 
+    // The recipe that matched the inputs of the last lookup (null if none did) and copies of those inputs
+    private @Nullable RecipeHolder<?> cachedRecipe = null;
+    private final ItemStack[] cachedInputs = new ItemStack[MAX_SLOT_COUNT];
+    private int cachedInputCount = 0;
+
+    // The recipe generation the cache was filled in. -1 if the cache is empty
+    private int cachedRecipeGeneration = -1;
+
+    // The recipe loaded from NBT. Tested before looking up the recipe the first time after the machine is loaded
+    private @Nullable ResourceKey<Recipe<?>> savedRecipeKey = null;
+
+    // The Transfer API storage of each side, indexed by Direction.get3DDataValue(), and of the null side. Built lazily for the current handler
+    private final ControllerItemStorage[] itemStorages = new ControllerItemStorage[7];
+    private @Nullable MachineHandler itemStorageHandler = null;
+
+    // The side of the port the output is ejected to, or null if the output stage is disabled.
+    // The port is a block of the structure, in local coordinates, or null for the controller itself
+    private @Nullable Direction ejectSide = null;
+    private @Nullable Vector3i ejectPort = null;
+
+    // The lookup of the eject target. It follows the block and block entity at the target position on its own
+    private @Nullable BlockApiCache<Storage<ItemVariant>, Direction> ejectCache = null;
+
 
 
 
     private final ContainerData containerData = new ContainerData() {
         @Override
         public int get(final int index) {
-            if(index < 0 || index >= MAX_DATA_COUNT) return 0;
-            else return machineData[index];
+            catchUp();
+            return getMachineData(index);
         }
 
         @Override
         public void set(final int index, final int value) {
-            if(index >= 0 && index < MAX_DATA_COUNT) {
-                machineData[index] = value;
-            }
+            setMachineData(index, value);
         }
 
         @Override
@@ -88,7 +139,7 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
     }
 
 
-    private Optional<MachineHandler> getHandler() {
+    public Optional<MachineHandler> getHandler() {
         final String structureId = getStructureId();
         if(structureId == null) return Optional.empty();
         else return MachineHandlerRegistry.getHandler(structureId);
@@ -99,8 +150,118 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
     // ==================== Server Tick ====================
 
-    public static void serverTick(final Level level, final BlockPos pos, final BlockState state, final BasicControllerBlockEntity be) {
-        be.getHandler().ifPresent(handler -> handler.serverTick(level, pos, state, be));
+    /**
+     * Applies the ticks the machine skipped while it was sleeping. Called by the {@link MachineScheduler}.
+     * @param ticks The number of skipped ticks.
+     */
+    public void skipTicks(final int ticks) {
+        getHandler().ifPresent(handler -> handler.skipTicks(this, ticks));
+        super.setChanged(); //! Not this.setChanged, which would wake the machine
+    }
+
+
+    /**
+     * Wakes the machine if it's sleeping. Called when anything that could make it do work changes.
+     */
+    void wake() {
+        MachineScheduler.checkNotComputing();
+        modificationCount++;
+        if(level instanceof final ServerLevel serverLevel) {
+            final MachineScheduler scheduler = MachineScheduler.getIfPresent(serverLevel);
+            if(scheduler != null) scheduler.wake(this);
+        }
+    }
+
+
+    /**
+     * Applies the ticks the machine skipped so far if it's sleeping, without waking it.
+     */
+    private void catchUp() {
+        if(level instanceof final ServerLevel serverLevel) {
+            final MachineScheduler scheduler = MachineScheduler.getIfPresent(serverLevel);
+            if(scheduler != null) scheduler.catchUp(this);
+        }
+    }
+
+
+    /**
+     * Returns a counter that changes every time something that could change the next tick of the machine changes,
+     * e.g. its inventory or its structure state. Used by the {@link MachineScheduler} to detect stale precomputed ticks.
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+
+    public long getUnloadedTick() {
+        return unloadedTick;
+    }
+
+
+    /**
+     * Applies the ticks the machine missed while its chunk was unloaded. Called by the {@link MachineScheduler} on the first tick after loading.
+     * <p>
+     * The ticks are only applied if the structure is formed and was restored from the snapshot written when it was evicted,
+     * meaning that the structure was intact the whole time.
+     * Tombstones are saved with the level, so this includes the ticks missed before a restart. The game time doesn't advance while
+     * the server is stopped, so the time it spent stopped isn't simulated. After a crash the tombstones are discarded and nothing is simulated.
+     * @param time The current game time.
+     */
+    public void simulateUnloadedTicks(final long time) {
+        final long elapsed = time - unloadedTick;
+        unloadedTick = -1;
+        if(elapsed <= 0 || !(level instanceof ServerLevel)) return;
+
+        ensureRegistered();
+        if(wasRestoredFromSnapshot()) {
+            simulateTicks(elapsed);
+        }
+    }
+
+
+    /**
+     * Applies ticks the machine missed as if it was ticked once per tick, in closed form. Does nothing if the structure is not formed.
+     * Called by the {@link MachineScheduler} for unloaded and deferred ticks.
+     * @param ticks The number of ticks.
+     */
+    public void simulateTicks(final long ticks) {
+        if(!(level instanceof final ServerLevel serverLevel) || !isStructureFormed()) return;
+        getHandler().ifPresent(handler -> handler.simulateUnloadedTicks(this, serverLevel, ticks));
+        setChanged();
+        ejectOutput(); //! Once for the whole batch of crafts
+    }
+
+
+    @Override
+    public void setChanged() {
+        super.setChanged();
+        wake(); // Menus and hoppers modify stacks in place and only call setChanged
+    }
+
+
+    @Override
+    public void setStructureId(final String id) {
+        super.setStructureId(id);
+        regroup();
+        clearItemStorages();
+    }
+
+
+    /**
+     * Moves the machine to the scheduler group of its current handler if it's active.
+     */
+    private void regroup() {
+        if(level instanceof final ServerLevel serverLevel) {
+            final MachineScheduler scheduler = MachineScheduler.getIfPresent(serverLevel);
+            if(scheduler != null) scheduler.regroup(this);
+        }
+    }
+
+
+    @Override
+    public void onStructureStateChanged(final @NotNull StructureState state) {
+        wake(); //! Before the state changes, so the skipped ticks are applied with the old state
+        super.onStructureStateChanged(state);
     }
 
 
@@ -114,15 +275,47 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
     public int getMachineData(final int index) {
         if(index < 0 || index >= MAX_DATA_COUNT) return 0;
+        else if(dataColumns != null && index < dataColumns.length) return dataColumns[index][dataSlot];
         else return machineData[index];
     }
 
     public void setMachineData(final int index, final int value) {
-        if(index >= 0 && index < MAX_DATA_COUNT) {
-            machineData[index] = value;
+        MachineScheduler.checkNotComputing();
+        if(index < 0 || index >= MAX_DATA_COUNT) return;
+        else if(dataColumns != null && index < dataColumns.length) dataColumns[index][dataSlot] = value;
+        else machineData[index] = value;
+    }
+
+    /**
+     * Moves the machine data into the columns of a {@link MachineScheduler} group, or back into this block entity.
+     * Called by the scheduler when the machine joins, leaves or changes slot in a group.
+     * @param columns The columns of the group, or null to store the data in this block entity.
+     * @param slot The index of this machine in the columns.
+     */
+    public void moveMachineData(final int @Nullable [][] columns, final int slot) {
+        if(dataColumns != null) {
+            for(int i = 0; i < dataColumns.length; i++) {
+                machineData[i] = dataColumns[i][dataSlot];
+            }
+        }
+        dataColumns = columns;
+        dataSlot = slot;
+        if(columns != null) {
+            for(int i = 0; i < columns.length; i++) {
+                columns[i][slot] = machineData[i];
+            }
         }
     }
 
+    /**
+     * Checks if the machine data is stored in the provided group columns.
+     * @param columns The columns of a {@link MachineScheduler} group.
+     * @return True if the machine is a member of the group, false otherwise.
+     */
+    public boolean isMachineDataIn(final int @NotNull [][] columns) {
+        return dataColumns == columns;
+    }
+
     public ContainerData getContainerData() {
         return containerData;
     }
@@ -150,6 +343,93 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
 
 
+    // ==================== Transfer API ====================
+
+    /**
+     * Returns the Fabric Transfer API storage of a side of the machine, following the slot rules of its handler.
+     * @param side The side, or null for all the slots.
+     * @return The storage, or null if the machine has no handler.
+     */
+    public @Nullable Storage<ItemVariant> getItemStorage(final @Nullable Direction side) {
+        final int index = side == null ? 6 : side.get3DDataValue();
+        ControllerItemStorage storage = itemStorages[index];
+        if(storage == null) {
+            final MachineHandler handler = getHandler().orElse(null);
+            if(handler == null) return null;
+            if(handler != itemStorageHandler) {
+                clearItemStorages();
+                itemStorageHandler = handler;
+            }
+            storage = ControllerItemStorage.create(this, handler, side);
+            itemStorages[index] = storage;
+        }
+        return storage;
+    }
+
+
+    private void clearItemStorages() {
+        Arrays.fill(itemStorages, null);
+        itemStorageHandler = null;
+    }
+
+
+
+
+    // ==================== Output Stage ====================
+
+    /**
+     * Sets where the output stage pushes the output of the machine.
+     * @param side The side of the port the output is inserted into, or null to disable the output stage.
+     * @param port The local coordinates of the port in the structure, or null to use the controller itself.
+     */
+    public void setEjectTarget(final @Nullable Direction side, final @Nullable Vector3i port) {
+        ejectSide = side;
+        ejectPort = side == null ? null : port;
+        ejectCache = null;
+        setChanged(); //! Wakes the machine, so an output that was blocked is pushed right away
+    }
+
+
+    public @Nullable Direction getEjectSide() {
+        return ejectSide;
+    }
+
+
+    public @Nullable Vector3i getEjectPort() {
+        return ejectPort;
+    }
+
+
+    public boolean hasEjectTarget() {
+        return ejectSide != null;
+    }
+
+
+    /**
+     * Pushes as much of the output slot as possible into the eject target, in one transaction.
+     * Does nothing if the output stage is disabled, the output is empty or the target is not loaded or has no item storage.
+     */
+    public void ejectOutput() {
+        if(ejectSide == null || !(level instanceof final ServerLevel serverLevel)) return;
+        final MachineHandler handler = getHandler().orElse(null);
+        if(handler == null || machineItems.get(handler.getOutputSlotIndex()).isEmpty()) return;
+
+        // Create the lookup the first time. Its target can't change without setEjectTarget being called
+        if(ejectCache == null) {
+            final BlockPos portPos = ejectPort == null ? worldPosition : Utils.localToGlobal(ejectPort, worldPosition, Structure.getControllerFacing(getBlockState()));
+            ejectCache = BlockApiCache.create(ItemStorage.SIDED, serverLevel, portPos.relative(ejectSide));
+        }
+        if(!serverLevel.isLoaded(ejectCache.getPos())) return;
+
+        final Storage<ItemVariant> target = ejectCache.find(ejectSide.getOpposite());
+        if(target != null && getItemStorage(null) instanceof final ControllerItemStorage storage) {
+            StorageUtil.move(storage.getSlot(handler.getOutputSlotIndex()), target, variant -> true, Long.MAX_VALUE, null);
+        }
+    }
+
+
+
+
     // ==================== Container Implementation ====================
 
     @Override
@@ -178,19 +458,22 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
     @Override
     public @NotNull ItemStack removeItem(final int slot, final int amount) {
         if(getContainerSize() == 0) return ItemStack.EMPTY;
-        else return ContainerHelper.removeItem(machineItems, slot, amount);
+        wake();
+        return ContainerHelper.removeItem(machineItems, slot, amount);
     }
 
     @Override
     public @NotNull ItemStack removeItemNoUpdate(final int slot) {
         if(getContainerSize() == 0) return ItemStack.EMPTY;
-        else return ContainerHelper.takeItem(machineItems, slot);
+        wake();
+        return ContainerHelper.takeItem(machineItems, slot);
     }
 
     @Override
     public void setItem(final int slot, @NotNull final ItemStack stack) {
         final int size = getContainerSize();
         if(slot < 0 || slot >= size) return;
+        wake();
 
         final ItemStack existing = machineItems.get(slot);
         final boolean sameItem = !stack.isEmpty() && ItemStack.isSameItemSameComponents(existing, stack);
@@ -221,6 +504,7 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
     @Override
     public void clearContent() {
+        wake();
         final int size = getContainerSize();
         for(int i = 0; i < size; i++) {
             machineItems.set(i, ItemStack.EMPTY);
@@ -234,12 +518,36 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
     @Override
     protected void saveAdditional(@NotNull final ValueOutput output) {
+        catchUp();
         super.saveAdditional(output);
 
         ContainerHelper.saveAllItems(output, machineItems, true);
 
         getHandler().ifPresent(handler -> handler.saveAdditional(output, this));
 
+        // Save the first tick the machine didn't process, so the ticks it misses while unloaded can be simulated when it's loaded again
+        if(level instanceof final ServerLevel serverLevel) {
+            final MachineScheduler scheduler = MachineScheduler.getIfPresent(serverLevel);
+            final long nextTick = unloadedTick >= 0 || scheduler == null ? unloadedTick : scheduler.getNextTick(this);
+            if(nextTick >= 0) {
+                output.putLong(TAG_NEXT_TICK, nextTick);
+            }
+        }
+
+        // Save the current recipe so the first tick after loading doesn't need a lookup
+        final ResourceKey<Recipe<?>> currentRecipe = cachedRecipe != null ? cachedRecipe.id() : savedRecipeKey;
+        if(currentRecipe != null) {
+            output.store(TAG_CURRENT_RECIPE, RECIPE_KEY_CODEC, currentRecipe);
+        }
+
+        // Save the output stage
+        if(ejectSide != null) {
+            output.putString(TAG_EJECT_SIDE, ejectSide.getName());
+            if(ejectPort != null) {
+                output.putIntArray(TAG_EJECT_PORT, new int[] { ejectPort.x, ejectPort.y, ejectPort.z });
+            }
+        }
+
         // Save recipes used
         final CompoundTag recipesTag = new CompoundTag();
         recipesUsed.forEach((id, count) -> recipesTag.putInt(id.toString(), count));
@@ -255,6 +563,24 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
         getHandler().ifPresent(handler -> handler.loadAdditional(input, this));
 
+        regroup(); // The structure ID might have changed
+        clearItemStorages();
+
+        // Machines that are already ticking (e.g. data modified by a command) didn't miss any tick
+        final MachineScheduler scheduler = level instanceof final ServerLevel serverLevel ? MachineScheduler.getIfPresent(serverLevel) : null;
+        unloadedTick = scheduler != null && scheduler.isTracked(this) ? -1L : input.getLongOr(TAG_NEXT_TICK, -1L);
+
+        // Load the current recipe
+        savedRecipeKey = input.read(TAG_CURRENT_RECIPE, RECIPE_KEY_CODEC).orElse(null);
+        cachedRecipe = null;
+        cachedRecipeGeneration = -1;
+
+        // Load the output stage
+        ejectSide = Direction.byName(input.getStringOr(TAG_EJECT_SIDE, ""));
+        final int[] port = input.getIntArray(TAG_EJECT_PORT).orElse(null);
+        ejectPort = ejectSide != null && port != null && port.length == 3 ? new Vector3i(port[0], port[1], port[2]) : null;
+        ejectCache = null;
+
         // Load recipes used
         final CompoundTag recipesTag = input.read(TAG_RECIPES_USED, CompoundTag.CODEC).orElse(new CompoundTag());
         recipesUsed.clear();
@@ -292,6 +618,81 @@ public class BasicControllerBlockEntity extends AbstractControllerBlockEntity im
 
 
 
+    // ==================== Recipe Cache ====================
+
+    /**
+     * Returns the recipe matching the machine's inputs.
+     * <p>
+     * The result is cached along with a copy of the inputs, so the recipe manager is only queried when the inputs change
+     * or the recipes are reloaded. When that happens, the last matched recipe is tested first.
+     * <p>
+     * This only modifies the cache of this block entity, so machine ticks can call it from the scheduler's worker threads
+     * once {@link RecipeIndex#prepare} was called on the server thread.
+     * @param type  The recipe type.
+     * @param input The current inputs.
+     * @param level The level of the machine.
+     * @return The matching recipe, or an empty Optional if no recipe matches.
+     */
+    @SuppressWarnings("unchecked")
+    public <I extends RecipeInput, T extends Recipe<I>> Optional<RecipeHolder<T>> getRecipeFor(final RecipeType<T> type, final I input, final ServerLevel level) {
+        final int generation = ModRecipes.getReloadGeneration();
+        if(cachedRecipeGeneration == generation && hasCachedInputs(input)) {
+            return Optional.ofNullable((RecipeHolder<T>) cachedRecipe);
+        }
+
+        // Get the last matched recipe. Holders from before a reload are resolved again by their key
+        RecipeHolder<?> candidate = null;
+        if(cachedRecipeGeneration == generation) {
+            candidate = cachedRecipe;
+        }
+        else {
+            final ResourceKey<Recipe<?>> key = cachedRecipe != null ? cachedRecipe.id() : savedRecipeKey;
+            if(key != null) {
+                candidate = level.getServer().getRecipeManager().byKey(key).orElse(null);
+            }
+        }
+        savedRecipeKey = null;
+
+        // Test it before querying the recipe manager
+        final Optional<RecipeHolder<T>> result;
+        if(candidate != null && candidate.value().getType() == type && ((Recipe<I>) candidate.value()).matches(input, level)) {
+            result = Optional.of((RecipeHolder<T>) candidate);
+        }
+        else {
+            result = RecipeIndex.getRecipeFor(type, input, level);
+        }
+
+        // Cache the result
+        cachedRecipe = result.orElse(null);
+        cacheInputs(input);
+        cachedRecipeGeneration = cachedInputCount == input.size() ? generation : -1;
+        return result;
+    }
+
+
+    private boolean hasCachedInputs(final RecipeInput input) {
+        if(input.size() != cachedInputCount) return false;
+        for(int i = 0; i < cachedInputCount; i++) {
+            final ItemStack cached = cachedInputs[i];
+            final ItemStack current = input.getItem(i);
+            if(cached.getCount() != current.getCount() || !ItemStack.isSameItemSameComponents(cached, current)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void cacheInputs(final RecipeInput input) {
+        cachedInputCount = Math.min(input.size(), cachedInputs.length);
+        for(int i = 0; i < cachedInputCount; i++) {
+            cachedInputs[i] = input.getItem(i).copy();
+        }
+    }
+
+
+
+
     // ==================== Recipe Tracking ====================
 
     public void recipeUsed(final Identifier recipeId) {
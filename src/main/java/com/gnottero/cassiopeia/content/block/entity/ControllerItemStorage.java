@@ -0,0 +1,189 @@
+package com.gnottero.cassiopeia.content.block.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import net.fabricmc.fabric.api.transfer.v1.item.ItemVariant;
+import net.fabricmc.fabric.api.transfer.v1.storage.StoragePreconditions;
+import net.fabricmc.fabric.api.transfer.v1.storage.base.CombinedStorage;
+import net.fabricmc.fabric.api.transfer.v1.storage.base.SingleSlotStorage;
+import net.fabricmc.fabric.api.transfer.v1.transaction.TransactionContext;
+import net.fabricmc.fabric.api.transfer.v1.transaction.base.SnapshotParticipant;
+import net.minecraft.core.Direction;
+import net.minecraft.core.NonNullList;
+import net.minecraft.world.item.ItemStack;
+
+import com.gnottero.cassiopeia.content.machine.MachineHandler;
+
+
+
+
+/**
+ * The Fabric Transfer API view of a machine's inventory from one side.
+ * <p>
+ * The slots and the insertion and extraction rules come from the {@link MachineHandler}, resolved once when the storage
+ * is built instead of on every call like the {@link net.minecraft.world.WorldlyContainer} methods do.
+ * Each slot can move a whole stack per transaction.
+ * <p>
+ * Storages are built by {@link BasicControllerBlockEntity#getItemStorage} and discarded when the handler of the machine changes.
+ */
+public final class ControllerItemStorage extends CombinedStorage<ItemVariant, SingleSlotStorage<ItemVariant>> {
+    private ControllerItemStorage(final @NotNull List<SingleSlotStorage<ItemVariant>> slots) {
+        super(slots);
+    }
+
+
+    /**
+     * Builds the storage of a machine for one side.
+     * @param be      The block entity of the machine.
+     * @param handler The handler of the machine.
+     * @param side    The side, or null for an unsided view that exposes all the slots without extraction rules.
+     * @return The storage.
+     */
+    static @NotNull ControllerItemStorage create(final @NotNull BasicControllerBlockEntity be, final @NotNull MachineHandler handler, final @Nullable Direction side) {
+        final List<SingleSlotStorage<ItemVariant>> slots = new ArrayList<>();
+        if(side == null) {
+            for(int i = 0; i < handler.getSlotCount(); i++) {
+                slots.add(new SlotStorage(be, handler, i, null));
+            }
+        }
+        else {
+            for(final int slot : handler.getSlotsForFace(side)) {
+                slots.add(new SlotStorage(be, handler, slot, side));
+            }
+        }
+        return new ControllerItemStorage(slots);
+    }
+
+
+    /**
+     * Returns the storage of a slot. Only valid for the unsided view, whose parts are indexed by slot.
+     * @param slot The slot index.
+     * @return The storage of the slot.
+     */
+    @NotNull SingleSlotStorage<ItemVariant> getSlot(final int slot) {
+        return parts.get(slot);
+    }
+
+
+
+
+    /**
+     * The contents of a slot, and the process progress of the machine that inserting into an empty input slot resets.
+     */
+    private record SlotSnapshot(@NotNull ItemStack stack, int progress) {}
+
+
+    private static final class SlotStorage extends SnapshotParticipant<SlotSnapshot> implements SingleSlotStorage<ItemVariant> {
+        private final BasicControllerBlockEntity be;
+        private final MachineHandler handler;
+        private final NonNullList<ItemStack> items;
+        private final int slot;
+        private final @Nullable Direction side;
+        private final boolean isInput;
+
+        SlotStorage(final @NotNull BasicControllerBlockEntity be, final @NotNull MachineHandler handler, final int slot, final @Nullable Direction side) {
+            this.be = be;
+            this.handler = handler;
+            this.items = be.getMachineItems();
+            this.slot = slot;
+            this.side = side;
+            this.isInput = slot == handler.getInputSlotIndex();
+        }
+
+
+        @Override
+        public long insert(final ItemVariant resource, final long maxAmount, final TransactionContext transaction) {
+            StoragePreconditions.notBlankNotNegative(resource, maxAmount);
+            final ItemStack current = items.get(slot);
+            if(!current.isEmpty() && !resource.matches(current)) return 0;
+
+            // The rules only depend on the item, so the current stack can be tested instead of a new one when it matches
+            final ItemStack tested = current.isEmpty() ? resource.toStack() : current;
+            if(!handler.canPlaceItem(be, slot, tested)) return 0;
+
+            final int inserted = (int) Math.min(maxAmount, Math.min(be.getMaxStackSize(), tested.getMaxStackSize()) - current.getCount());
+            if(inserted <= 0) return 0;
+
+            updateSnapshots(transaction);
+            if(current.isEmpty()) {
+                items.set(slot, resource.toStack(inserted));
+
+                // Same as setItem: a different input resets the progress
+                if(isInput) {
+                    be.setMachineData(handler.getProcessProgressIndex(), 0);
+                }
+            }
+            else {
+                current.grow(inserted);
+            }
+            return inserted;
+        }
+
+
+        @Override
+        public long extract(final ItemVariant resource, final long maxAmount, final TransactionContext transaction) {
+            StoragePreconditions.notBlankNotNegative(resource, maxAmount);
+            final ItemStack current = items.get(slot);
+            if(current.isEmpty() || !resource.matches(current)) return 0;
+            if(side != null && !handler.canTakeItem(slot, current, side)) return 0;
+
+            final int extracted = (int) Math.min(maxAmount, current.getCount());
+            updateSnapshots(transaction);
+            current.shrink(extracted);
+            if(current.isEmpty()) {
+                items.set(slot, ItemStack.EMPTY);
+            }
+            return extracted;
+        }
+
+
+        @Override
+        public boolean isResourceBlank() {
+            return items.get(slot).isEmpty();
+        }
+
+        @Override
+        public ItemVariant getResource() {
+            return ItemVariant.of(items.get(slot));
+        }
+
+        @Override
+        public long getAmount() {
+            return items.get(slot).getCount();
+        }
+
+        @Override
+        public long getCapacity() {
+            final ItemStack current = items.get(slot);
+            return current.isEmpty() ? be.getMaxStackSize() : Math.min(be.getMaxStackSize(), current.getMaxStackSize());
+        }
+
+
+
+
+        @Override
+        protected SlotSnapshot createSnapshot() {
+
+            //! Wake the machine before its first change, so the ticks it skipped while sleeping are applied to the old inventory
+            be.wake();
+            return new SlotSnapshot(items.get(slot).copy(), be.getMachineData(handler.getProcessProgressIndex()));
+        }
+
+        @Override
+        protected void readSnapshot(final SlotSnapshot snapshot) {
+            items.set(slot, snapshot.stack());
+            if(isInput) {
+                be.setMachineData(handler.getProcessProgressIndex(), snapshot.progress());
+            }
+        }
+
+        @Override
+        protected void onFinalCommit() {
+            be.setChanged();
+        }
+    }
+}
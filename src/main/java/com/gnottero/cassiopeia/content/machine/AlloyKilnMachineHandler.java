@@ -5,7 +5,6 @@ import com.gnottero.cassiopeia.content.menu.AlloyKilnMenu;
 import com.gnottero.cassiopeia.content.recipe.AlloyingRecipe;
 import com.gnottero.cassiopeia.content.recipe.AlloyingRecipeInput;
 import com.gnottero.cassiopeia.content.recipe.ModRecipes;
-import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.NonNullList;
 import net.minecraft.network.chat.Component;
@@ -19,7 +18,6 @@ import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.crafting.RecipeHolder;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.entity.FuelValues;
-import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.storage.ValueInput;
 import net.minecraft.world.level.storage.ValueOutput;
 import org.jetbrains.annotations.NotNull;
@@ -49,6 +47,9 @@ public class AlloyKilnMachineHandler implements MachineHandler {
     public static final int DATA_ALLOYING_TOTAL_TIME = 3;
     public static final int DATA_COUNT = 4;
 
+    // Not synchronized: 1 if the ticks skipped while sleeping advance the alloying progress, 0 if they only burn fuel
+    private static final int DATA_BATCH_PROCESSING = DATA_COUNT;
+
     // NBT keys
     private static final String KEY_LIT_TIME = "lit_time_remaining";
     private static final String KEY_LIT_DURATION = "lit_total_time";
@@ -85,6 +86,11 @@ public class AlloyKilnMachineHandler implements MachineHandler {
         return new int[] { INPUT_SLOT_A, INPUT_SLOT_B };
     }
 
+    @Override
+    public int getOutputSlotIndex() {
+        return OUTPUT_SLOT;
+    }
+
     @Override
     public int getProcessProgressIndex() {
         return DATA_ALLOYING_PROGRESS;
@@ -117,12 +123,7 @@ public class AlloyKilnMachineHandler implements MachineHandler {
     }
 
     @Override
-    public void serverTick(final Level level, final BlockPos pos, final BlockState state,
-            final BasicControllerBlockEntity be) {
-        if (!be.verifyStructure()) {
-            return;
-        }
-
+    public MachineTickResult computeTick(final Level level, final BasicControllerBlockEntity be) {
         final NonNullList<ItemStack> items = be.getMachineItems();
         final FuelValues fuelValues = level.fuelValues();
 
@@ -132,6 +133,10 @@ public class AlloyKilnMachineHandler implements MachineHandler {
         int alloyingTotalTime = be.getMachineData(DATA_ALLOYING_TOTAL_TIME);
 
         boolean changed = false;
+        boolean active = false; // Whether anything other than the fuel changed
+        boolean processing = false; // Whether the progress advanced without completing a craft
+        boolean consumeFuel = false;
+        RecipeHolder<AlloyingRecipe> craft = null;
 
         // Decrement fuel (fuel burns regardless of input)
         if (litTime > 0) {
@@ -143,7 +148,7 @@ public class AlloyKilnMachineHandler implements MachineHandler {
         final ItemStack inputB = items.get(INPUT_SLOT_B);
         final ItemStack fuelStack = items.get(FUEL_SLOT);
 
-        final Optional<RecipeHolder<AlloyingRecipe>> recipeOpt = getRecipe(level, inputA, inputB);
+        final Optional<RecipeHolder<AlloyingRecipe>> recipeOpt = getRecipe(be, level, inputA, inputB);
 
         if (recipeOpt.isPresent()) {
             final RecipeHolder<AlloyingRecipe> holder = recipeOpt.get();
@@ -153,6 +158,7 @@ public class AlloyKilnMachineHandler implements MachineHandler {
             if (alloyingTotalTime != recipeTime) {
                 alloyingTotalTime = recipeTime;
                 changed = true;
+                active = true;
             }
 
             // Try to consume fuel
@@ -161,47 +167,187 @@ public class AlloyKilnMachineHandler implements MachineHandler {
                 if (burnTime > 0) {
                     litTime = burnTime;
                     litDuration = burnTime;
-                    consumeFuel(items);
+                    consumeFuel = true;
                     changed = true;
+                    active = true;
                 }
             }
 
-            // Process if lit and can process
+            // Process if lit and can process. Consuming fuel doesn't touch the output slot, so canProcess gives the same result
             if (litTime > 0 && canProcess(items, recipe)) {
                 alloyingProgress++;
                 if (alloyingProgress >= alloyingTotalTime) {
                     alloyingProgress = 0;
-                    process(items, recipe);
-                    recordRecipeUsed(be, holder);
+                    craft = holder;
+                }
+                else {
+                    processing = true;
                 }
                 changed = true;
+                active = true;
             } else if (litTime <= 0 && alloyingProgress > 0) {
                 alloyingProgress = Math.max(0, alloyingProgress - 2);
                 changed = true;
+                active = true;
             }
         } else if (alloyingProgress > 0) {
             alloyingProgress = 0;
             changed = true;
+            active = true;
         }
 
-        be.setMachineData(DATA_LIT_TIME, litTime);
-        be.setMachineData(DATA_LIT_DURATION, litDuration);
-        be.setMachineData(DATA_ALLOYING_PROGRESS, alloyingProgress);
-        be.setMachineData(DATA_ALLOYING_TOTAL_TIME, alloyingTotalTime);
+        // Processing ticks that didn't complete a craft don't change the inputs either, so the following ticks
+        // only burn fuel and advance the progress until the craft completes or the fuel runs out.
+        // Idle ticks don't change the inputs, so the following ticks are idle too until the fuel runs out
+        int skippable;
+        if (processing) skippable = Math.min(litTime - 1, alloyingTotalTime - alloyingProgress - 1);
+        else if (active) skippable = KEEP_TICKING;
+        else skippable = litTime > 0 ? litTime - 1 : SLEEP_UNTIL_WOKEN;
+
+        // A blocked output is retried periodically, as the eject target doesn't wake the machine when it has room again
+        if (!processing && !active && be.hasEjectTarget() && !items.get(OUTPUT_SLOT).isEmpty()) {
+            skippable = Math.min(skippable, EJECT_RETRY_TICKS);
+        }
 
-        if (changed) {
+        final int[] data = { litTime, litDuration, alloyingProgress, alloyingTotalTime, processing ? 1 : 0 };
+        return new MachineTickResult(data, consumeFuel, craft, changed, skippable);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void applyTick(final BasicControllerBlockEntity be, final MachineTickResult result) {
+        final NonNullList<ItemStack> items = be.getMachineItems();
+
+        if (result.consumeFuel()) {
+            consumeFuel(items);
+        }
+        if (result.craft() != null) {
+            final RecipeHolder<AlloyingRecipe> holder = (RecipeHolder<AlloyingRecipe>) result.craft();
+            process(items, holder.value());
+            recordRecipeUsed(be, holder);
+        }
+
+        final int[] data = result.data();
+        be.setMachineData(DATA_LIT_TIME, data[DATA_LIT_TIME]);
+        be.setMachineData(DATA_LIT_DURATION, data[DATA_LIT_DURATION]);
+        be.setMachineData(DATA_ALLOYING_PROGRESS, data[DATA_ALLOYING_PROGRESS]);
+        be.setMachineData(DATA_ALLOYING_TOTAL_TIME, data[DATA_ALLOYING_TOTAL_TIME]);
+        be.setMachineData(DATA_BATCH_PROCESSING, data[DATA_BATCH_PROCESSING]);
+
+        if (result.changed()) {
             be.setChanged();
         }
+
+        // Output stage: push the output to the eject target once per craft, and before sleeping so a blocked output is retried
+        if (result.craft() != null || result.skippable() > 0) {
+            be.ejectOutput();
+        }
+    }
+
+    @Override
+    public void skipTicks(final BasicControllerBlockEntity be, final int ticks) {
+        // Skipped ticks only happen while the structure is formed
+        if (!be.isStructureFormed()) {
+            return;
+        }
+
+        // Batched processing ticks burn fuel and advance the progress. They never reach the end of the fuel or of the craft
+        if (be.getMachineData(DATA_BATCH_PROCESSING) != 0) {
+            be.setMachineData(DATA_LIT_TIME, be.getMachineData(DATA_LIT_TIME) - ticks);
+            be.setMachineData(DATA_ALLOYING_PROGRESS, be.getMachineData(DATA_ALLOYING_PROGRESS) + ticks);
+        }
+
+        // Idle ticks only burn fuel
+        else {
+            be.setMachineData(DATA_LIT_TIME, Math.max(0, be.getMachineData(DATA_LIT_TIME) - ticks));
+        }
+    }
+
+    @Override
+    public void simulateUnloadedTicks(final BasicControllerBlockEntity be, final ServerLevel level, long ticks) {
+        final NonNullList<ItemStack> items = be.getMachineItems();
+
+        int litTime = be.getMachineData(DATA_LIT_TIME);
+        int litDuration = be.getMachineData(DATA_LIT_DURATION);
+        int progress = be.getMachineData(DATA_ALLOYING_PROGRESS);
+        int totalTime = be.getMachineData(DATA_ALLOYING_TOTAL_TIME);
+
+        while (ticks > 0) {
+            final Optional<RecipeHolder<AlloyingRecipe>> recipeOpt = getRecipe(be, level, items.get(INPUT_SLOT_A), items.get(INPUT_SLOT_B));
+
+            // No valid recipe - the progress resets and the fuel burns
+            if (recipeOpt.isEmpty()) {
+                progress = 0;
+                litTime = (int) Math.max(0, litTime - ticks);
+                break;
+            }
+            final RecipeHolder<AlloyingRecipe> holder = recipeOpt.get();
+            final AlloyingRecipe recipe = holder.value();
+            totalTime = recipe.getAlloyingTime();
+
+            // Can't process - the fuel burns and the progress decays once it runs out
+            final int maxCrafts = getMaxCrafts(items, recipe);
+            if (maxCrafts == 0) {
+                final MachineCatchUp.Phase phase = MachineCatchUp.idle(litTime, progress, ticks);
+                litTime = phase.litTime();
+                progress = phase.progress();
+                break;
+            }
+
+            // Process until the inputs or the output slot allow no more crafts, or the fuel or the time runs out
+            final ItemStack fuelStack = items.get(FUEL_SLOT);
+            final int burnTime = fuelStack.isEmpty() ? 0 : level.fuelValues().burnDuration(fuelStack);
+            final MachineCatchUp.Phase phase = MachineCatchUp.process(litTime, fuelStack.getCount(), burnTime, progress, totalTime, maxCrafts, ticks);
+            for (int i = 0; i < phase.fuelUsed(); i++) {
+                consumeFuel(items);
+            }
+            for (int i = 0; i < phase.crafts(); i++) {
+                process(items, recipe);
+                recordRecipeUsed(be, holder);
+            }
+            if (phase.fuelUsed() > 0) {
+                litDuration = burnTime;
+            }
+            litTime = phase.litTime();
+            progress = phase.progress();
+            ticks -= phase.ticks();
+
+            // The fuel ran out before the crafts were done
+            if (phase.crafts() < maxCrafts && ticks > 0) {
+                final MachineCatchUp.Phase rest = MachineCatchUp.idle(litTime, progress, ticks);
+                litTime = rest.litTime();
+                progress = rest.progress();
+                break;
+            }
+            //! Otherwise the inputs changed, so the recipe is looked up again for the remaining ticks
+        }
+
+        be.setMachineData(DATA_LIT_TIME, litTime);
+        be.setMachineData(DATA_LIT_DURATION, litDuration);
+        be.setMachineData(DATA_ALLOYING_PROGRESS, progress);
+        be.setMachineData(DATA_ALLOYING_TOTAL_TIME, totalTime);
+    }
+
+    private int getMaxCrafts(final NonNullList<ItemStack> items, final AlloyingRecipe recipe) {
+        final ItemStack stackA = items.get(INPUT_SLOT_A);
+        final ItemStack stackB = items.get(INPUT_SLOT_B);
+
+        // Same slot order as process(). If it stops matching, the recipe is looked up again
+        final boolean direct = recipe.getInputA().test(stackA) && recipe.getInputB().test(stackB);
+        final int countA = direct ? recipe.getInputA().count() : recipe.getInputB().count();
+        final int countB = direct ? recipe.getInputB().count() : recipe.getInputA().count();
+        final int inputCrafts = Math.min(stackA.getCount() / Math.max(1, countA), stackB.getCount() / Math.max(1, countB));
+        return Math.min(inputCrafts, MachineCatchUp.getOutputCrafts(items.get(OUTPUT_SLOT), recipe.getResult()));
     }
 
-    private Optional<RecipeHolder<AlloyingRecipe>> getRecipe(final Level level, final ItemStack inputA,
-            final ItemStack inputB) {
+    private Optional<RecipeHolder<AlloyingRecipe>> getRecipe(final BasicControllerBlockEntity be, final Level level,
+            final ItemStack inputA, final ItemStack inputB) {
         if (level == null || (inputA.isEmpty() && inputB.isEmpty())
                 || !(level instanceof final ServerLevel serverLevel)) {
             return Optional.empty();
         }
         final AlloyingRecipeInput recipeInput = new AlloyingRecipeInput(inputA, inputB);
-        return serverLevel.recipeAccess().getRecipeFor(ModRecipes.ALLOYING_TYPE, recipeInput, serverLevel);
+        return be.getRecipeFor(ModRecipes.ALLOYING_TYPE, recipeInput, serverLevel);
     }
 
     private boolean canProcess(final NonNullList<ItemStack> items, final AlloyingRecipe recipe) {
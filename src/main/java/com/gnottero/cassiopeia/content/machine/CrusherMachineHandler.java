@@ -5,7 +5,6 @@ import com.gnottero.cassiopeia.content.menu.CrusherMenu;
 import com.gnottero.cassiopeia.content.recipe.CrushingRecipe;
 import com.gnottero.cassiopeia.content.recipe.ModRecipes;
 
-import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.NonNullList;
 import net.minecraft.network.chat.Component;
@@ -20,7 +19,6 @@ import net.minecraft.world.item.crafting.RecipeHolder;
 import net.minecraft.world.item.crafting.SingleRecipeInput;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.entity.FuelValues;
-import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.storage.ValueInput;
 import net.minecraft.world.level.storage.ValueOutput;
 
@@ -53,6 +51,9 @@ public class CrusherMachineHandler implements MachineHandler {
     public static final int DATA_CRUSHING_TOTAL_TIME = 3;
     public static final int DATA_COUNT = 4;
 
+    // Not synchronized: 1 if the ticks skipped while sleeping advance the crushing progress, 0 if they only burn fuel
+    private static final int DATA_BATCH_PROCESSING = DATA_COUNT;
+
     // NBT keys
     private static final String KEY_LIT_TIME = "lit_time_remaining";
     private static final String KEY_LIT_DURATION = "lit_total_time";
@@ -87,6 +88,11 @@ public class CrusherMachineHandler implements MachineHandler {
         return INPUT_SLOT;
     }
 
+    @Override
+    public int getOutputSlotIndex() {
+        return OUTPUT_SLOT;
+    }
+
     @Override
     public int getProcessProgressIndex() {
         return DATA_CRUSHING_PROGRESS;
@@ -122,17 +128,13 @@ public class CrusherMachineHandler implements MachineHandler {
 
 
     /**
-     * Server-side tick processing following vanilla furnace pattern.
+     * Computes a tick following vanilla furnace pattern.
      * - Fuel continues burning even without input (like vanilla)
      * - Crushing progress only advances when lit and has valid recipe
      * - Crushing progress resets when input removed or no valid recipe
      */
     @Override
-    public void serverTick(final Level level, final BlockPos pos, final BlockState state, final BasicControllerBlockEntity be) {
-        if(!be.verifyStructure()) {
-            return;
-        }
-
+    public MachineTickResult computeTick(final Level level, final BasicControllerBlockEntity be) {
         final NonNullList<ItemStack> items = be.getMachineItems();
         final FuelValues fuelValues = level.fuelValues();
 
@@ -142,8 +144,11 @@ public class CrusherMachineHandler implements MachineHandler {
         int crushingProgress  = be.getMachineData(DATA_CRUSHING_PROGRESS);
         int crushingTotalTime = be.getMachineData(DATA_CRUSHING_TOTAL_TIME);
 
-        final boolean wasLit = litTime > 0; //TODO this is never used. Remove if not needed
         boolean changed = false;
+        boolean active = false; // Whether anything other than the fuel changed
+        boolean processing = false; // Whether the progress advanced without completing a craft
+        boolean consumeFuel = false;
+        RecipeHolder<CrushingRecipe> craft = null;
 
         // Decrement fuel (fuel burns regardless of input - vanilla behavior)
         if(litTime > 0) {
@@ -155,7 +160,7 @@ public class CrusherMachineHandler implements MachineHandler {
         final ItemStack fuelStack = items.get(FUEL_SLOT);
 
         // Try to get recipe for current input
-        final Optional<RecipeHolder<CrushingRecipe>> recipeOpt = getRecipe(level, inputStack);
+        final Optional<RecipeHolder<CrushingRecipe>> recipeOpt = getRecipe(be, level, inputStack);
 
         if(recipeOpt.isPresent()) {
             final RecipeHolder<CrushingRecipe> holder = recipeOpt.get();
@@ -166,6 +171,7 @@ public class CrusherMachineHandler implements MachineHandler {
             if(crushingTotalTime != recipeCookTime) {
                 crushingTotalTime = recipeCookTime;
                 changed = true;
+                active = true;
             }
 
             // Try to consume fuel if not lit but have fuel and valid recipe
@@ -174,26 +180,31 @@ public class CrusherMachineHandler implements MachineHandler {
                 if(burnTime > 0) {
                     litTime = burnTime;
                     litDuration = burnTime;
-                    consumeFuel(items);
+                    consumeFuel = true;
                     changed = true;
+                    active = true;
                 }
             }
 
-            // Process if lit and can process
+            // Process if lit and can process. Consuming fuel doesn't touch the output slot, so canProcess gives the same result
             if(litTime > 0 && canProcess(items, recipe)) {
                 crushingProgress++;
                 if(crushingProgress >= crushingTotalTime) {
                     crushingProgress = 0;
-                    process(items, recipe);
-                    recordRecipeUsed(be, holder);
+                    craft = holder;
+                }
+                else {
+                    processing = true;
                 }
                 changed = true;
+                active = true;
             }
 
             // No fuel - decay progress (vanilla behavior)
             else if(litTime <= 0 && crushingProgress > 0) {
                 crushingProgress = Math.max(0, crushingProgress - 2);
                 changed = true;
+                active = true;
             }
         }
 
@@ -201,28 +212,162 @@ public class CrusherMachineHandler implements MachineHandler {
         else if(crushingProgress > 0) {
             crushingProgress = 0;
             changed = true;
+            active = true;
+        }
+
+        // Processing ticks that didn't complete a craft don't change the inputs either, so the following ticks
+        // only burn fuel and advance the progress until the craft completes or the fuel runs out.
+        // Idle ticks don't change the inputs, so the following ticks are idle too until the fuel runs out
+        int skippable;
+        if(processing) skippable = Math.min(litTime - 1, crushingTotalTime - crushingProgress - 1);
+        else if(active) skippable = KEEP_TICKING;
+        else skippable = litTime > 0 ? litTime - 1 : SLEEP_UNTIL_WOKEN;
+
+        // A blocked output is retried periodically, as the eject target doesn't wake the machine when it has room again
+        if(!processing && !active && be.hasEjectTarget() && !items.get(OUTPUT_SLOT).isEmpty()) {
+            skippable = Math.min(skippable, EJECT_RETRY_TICKS);
+        }
+
+        final int[] data = { litTime, litDuration, crushingProgress, crushingTotalTime, processing ? 1 : 0 };
+        return new MachineTickResult(data, consumeFuel, craft, changed, skippable);
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void applyTick(final BasicControllerBlockEntity be, final MachineTickResult result) {
+        final NonNullList<ItemStack> items = be.getMachineItems();
+
+        if(result.consumeFuel()) {
+            consumeFuel(items);
+        }
+        if(result.craft() != null) {
+            final RecipeHolder<CrushingRecipe> holder = (RecipeHolder<CrushingRecipe>) result.craft();
+            process(items, holder.value());
+            recordRecipeUsed(be, holder);
         }
 
         // Write state back
+        final int[] data = result.data();
+        be.setMachineData(DATA_LIT_TIME,            data[DATA_LIT_TIME]);
+        be.setMachineData(DATA_LIT_DURATION,        data[DATA_LIT_DURATION]);
+        be.setMachineData(DATA_CRUSHING_PROGRESS,   data[DATA_CRUSHING_PROGRESS]);
+        be.setMachineData(DATA_CRUSHING_TOTAL_TIME, data[DATA_CRUSHING_TOTAL_TIME]);
+        be.setMachineData(DATA_BATCH_PROCESSING,    data[DATA_BATCH_PROCESSING]);
+
+        if(result.changed()) {
+            be.setChanged();
+        }
+
+        // Output stage: push the output to the eject target once per craft, and before sleeping so a blocked output is retried
+        if(result.craft() != null || result.skippable() > 0) {
+            be.ejectOutput();
+        }
+    }
+
+
+    @Override
+    public void skipTicks(final BasicControllerBlockEntity be, final int ticks) {
+        // Skipped ticks only happen while the structure is formed
+        if(!be.isStructureFormed()) {
+            return;
+        }
+
+        // Batched processing ticks burn fuel and advance the progress. They never reach the end of the fuel or of the craft
+        if(be.getMachineData(DATA_BATCH_PROCESSING) != 0) {
+            be.setMachineData(DATA_LIT_TIME, be.getMachineData(DATA_LIT_TIME) - ticks);
+            be.setMachineData(DATA_CRUSHING_PROGRESS, be.getMachineData(DATA_CRUSHING_PROGRESS) + ticks);
+        }
+
+        // Idle ticks only burn fuel
+        else {
+            be.setMachineData(DATA_LIT_TIME, Math.max(0, be.getMachineData(DATA_LIT_TIME) - ticks));
+        }
+    }
+
+
+
+
+    @Override
+    public void simulateUnloadedTicks(final BasicControllerBlockEntity be, final ServerLevel level, long ticks) {
+        final NonNullList<ItemStack> items = be.getMachineItems();
+
+        int litTime     = be.getMachineData(DATA_LIT_TIME);
+        int litDuration = be.getMachineData(DATA_LIT_DURATION);
+        int progress    = be.getMachineData(DATA_CRUSHING_PROGRESS);
+        int totalTime   = be.getMachineData(DATA_CRUSHING_TOTAL_TIME);
+
+        while(ticks > 0) {
+            final Optional<RecipeHolder<CrushingRecipe>> recipeOpt = getRecipe(be, level, items.get(INPUT_SLOT));
+
+            // No valid recipe - the progress resets and the fuel burns
+            if(recipeOpt.isEmpty()) {
+                progress = 0;
+                litTime = (int) Math.max(0, litTime - ticks);
+                break;
+            }
+            final RecipeHolder<CrushingRecipe> holder = recipeOpt.get();
+            final CrushingRecipe recipe = holder.value();
+            totalTime = recipe.getCrushingTime();
+
+            // Can't process - the fuel burns and the progress decays once it runs out
+            final int maxCrafts = getMaxCrafts(items, recipe);
+            if(maxCrafts == 0) {
+                final MachineCatchUp.Phase phase = MachineCatchUp.idle(litTime, progress, ticks);
+                litTime = phase.litTime();
+                progress = phase.progress();
+                break;
+            }
+
+            // Process until the inputs or the output slot allow no more crafts, or the fuel or the time runs out
+            final ItemStack fuelStack = items.get(FUEL_SLOT);
+            final int burnTime = fuelStack.isEmpty() ? 0 : getBurnTime(level.fuelValues(), fuelStack);
+            final MachineCatchUp.Phase phase = MachineCatchUp.process(litTime, fuelStack.getCount(), burnTime, progress, totalTime, maxCrafts, ticks);
+            for(int i = 0; i < phase.fuelUsed(); i++) {
+                consumeFuel(items);
+            }
+            for(int i = 0; i < phase.crafts(); i++) {
+                process(items, recipe);
+                recordRecipeUsed(be, holder);
+            }
+            if(phase.fuelUsed() > 0) {
+                litDuration = burnTime;
+            }
+            litTime = phase.litTime();
+            progress = phase.progress();
+            ticks -= phase.ticks();
+
+            // The fuel ran out before the crafts were done
+            if(phase.crafts() < maxCrafts && ticks > 0) {
+                final MachineCatchUp.Phase rest = MachineCatchUp.idle(litTime, progress, ticks);
+                litTime = rest.litTime();
+                progress = rest.progress();
+                break;
+            }
+            //! Otherwise the inputs changed, so the recipe is looked up again for the remaining ticks
+        }
+
         be.setMachineData(DATA_LIT_TIME,            litTime);
         be.setMachineData(DATA_LIT_DURATION,        litDuration);
-        be.setMachineData(DATA_CRUSHING_PROGRESS,   crushingProgress);
-        be.setMachineData(DATA_CRUSHING_TOTAL_TIME, crushingTotalTime);
+        be.setMachineData(DATA_CRUSHING_PROGRESS,   progress);
+        be.setMachineData(DATA_CRUSHING_TOTAL_TIME, totalTime);
+    }
 
-        if(changed) {
-            be.setChanged();
-        }
+
+    private int getMaxCrafts(final NonNullList<ItemStack> items, final CrushingRecipe recipe) {
+        final int inputCrafts = items.get(INPUT_SLOT).getCount() / Math.max(1, recipe.getInput().count());
+        return Math.min(inputCrafts, MachineCatchUp.getOutputCrafts(items.get(OUTPUT_SLOT), recipe.getResult()));
     }
 
 
 
 
-    private Optional<RecipeHolder<CrushingRecipe>> getRecipe(final Level level, final ItemStack input) {
+    private Optional<RecipeHolder<CrushingRecipe>> getRecipe(final BasicControllerBlockEntity be, final Level level, final ItemStack input) {
         if(level == null || input.isEmpty() || !(level instanceof final ServerLevel serverLevel)) {
             return Optional.empty();
         }
         final SingleRecipeInput recipeInput = new SingleRecipeInput(input);
-        return serverLevel.recipeAccess().getRecipeFor(ModRecipes.CRUSHING_TYPE, recipeInput, serverLevel);
+        return be.getRecipeFor(ModRecipes.CRUSHING_TYPE, recipeInput, serverLevel);
     }
 
 
@@ -0,0 +1,109 @@
+package com.gnottero.cassiopeia.content.machine;
+
+import net.minecraft.world.item.ItemStack;
+
+
+
+
+/**
+ * Closed-form simulation of the fuel and progress of the furnace-like machines.
+ * <p>
+ * The formulas match ticking the machine once per tick with the vanilla furnace rules used by the handlers:
+ * fuel burns one unit per tick, a new fuel item is consumed on the tick the lit time reaches 0 if the machine can process,
+ * progress advances while lit and decays by 2 per tick while unlit.
+ */
+final class MachineCatchUp {
+    private MachineCatchUp() {}
+
+
+
+
+    /**
+     * The state of a machine after a processing phase.
+     * @param crafts   The number of completed crafts.
+     * @param fuelUsed The number of fuel items consumed.
+     * @param litTime  The remaining lit time.
+     * @param progress The progress of the current craft.
+     * @param ticks    The number of ticks the phase lasted.
+     */
+    record Phase(int crafts, int fuelUsed, int litTime, int progress, long ticks) {}
+
+
+
+
+    /**
+     * Simulates a machine that has a recipe and can process it, until it completes {@code maxCrafts} crafts,
+     * runs out of fuel or runs out of time.
+     * <p>
+     * When the fuel runs out first, the returned phase ends on the last lit tick. Use {@link #idle} for the rest.
+     * @param litTime   The current lit time.
+     * @param fuelCount The number of fuel items in the fuel slot.
+     * @param burnTime  The burn time of each fuel item. Ignored if {@code fuelCount} is 0.
+     * @param progress  The current progress.
+     * @param totalTime The processing time of the recipe.
+     * @param maxCrafts The number of crafts the inputs and the output slot allow. Must be at least 1.
+     * @param ticks     The number of ticks to simulate.
+     * @return The state after the phase.
+     */
+    static Phase process(final int litTime, final int fuelCount, final int burnTime, final int progress, final int totalTime, final int maxCrafts, final long ticks) {
+
+        // Ticks the current fuel lasts, then each fuel item lasts burnTime ticks
+        final long base = Math.max(litTime - 1, 0);
+        final long fuelTicks = base + (burnTime > 0 ? (long) fuelCount * burnTime : 0);
+
+        // Ticks needed to complete the current craft and each of the next ones
+        final long step = Math.max(1, totalTime);
+        final long first = Math.max(1, totalTime - progress);
+        final long needed = first + (maxCrafts - 1) * step;
+
+        // Count the completed crafts
+        final long used = Math.min(needed, Math.min(fuelTicks, ticks));
+        final int crafts;
+        final int newProgress;
+        if(used < first) {
+            crafts = 0;
+            newProgress = (int) (progress + used);
+        }
+        else {
+            crafts = (int) (1 + (used - first) / step);
+            newProgress = (int) ((used - first) % step);
+        }
+
+        // Count the consumed fuel
+        if(used <= base) {
+            return new Phase(crafts, 0, (int) (litTime - used), newProgress, used);
+        }
+        final long fuelUsed = (used - base - 1) / burnTime + 1;
+        final int newLitTime = (int) (burnTime - (used - base - 1) % burnTime);
+        return new Phase(crafts, (int) fuelUsed, newLitTime, newProgress, used);
+    }
+
+
+    /**
+     * Counts how many crafts fit in the output slot, following the handlers' canProcess rules.
+     * @param output The output slot.
+     * @param result The result of the recipe.
+     * @return The number of crafts.
+     */
+    static int getOutputCrafts(final ItemStack output, final ItemStack result) {
+        final int count = Math.max(1, result.getCount());
+        if(output.isEmpty()) return Math.max(1, result.getMaxStackSize() / count); //! The first craft is always allowed
+        if(!ItemStack.isSameItemSameComponents(output, result)) return 0;
+        return Math.max(0, (output.getMaxStackSize() - output.getCount()) / count);
+    }
+
+
+    /**
+     * Simulates a machine that can't process: the fuel burns without being replaced and the progress decays once it runs out.
+     * @param litTime  The current lit time.
+     * @param progress The current progress.
+     * @param ticks    The number of ticks to simulate.
+     * @return The state after the phase, with no crafts and no fuel consumed.
+     */
+    static Phase idle(final int litTime, final int progress, final long ticks) {
+        final long decayTicks = Math.max(0, ticks - Math.max(litTime - 1, 0));
+        final int newProgress = (int) Math.max(0, progress - 2 * decayTicks);
+        final int newLitTime = (int) Math.max(0, litTime - ticks);
+        return new Phase(0, 0, newLitTime, newProgress, ticks);
+    }
+}
@@ -4,6 +4,7 @@ import com.gnottero.cassiopeia.content.block.entity.BasicControllerBlockEntity;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.player.Inventory;
 import net.minecraft.world.inventory.AbstractContainerMenu;
 import net.minecraft.world.inventory.ContainerData;
@@ -51,6 +52,11 @@ public interface MachineHandler {
         return new int[] { getInputSlotIndex() };
     }
 
+    /**
+     * @return The slot index for the output slot, emptied by the output stage when the machine has an eject target
+     */
+    int getOutputSlotIndex();
+
     /**
      * @return The data index for cooking/processing progress
      */
@@ -79,10 +85,79 @@ public interface MachineHandler {
     boolean canTakeItem(int slot, ItemStack stack, Direction direction);
 
     /**
-     * Server-side tick processing. Called every tick on the server.
+     * Returned by {@link #serverTick} when the machine needs to be ticked again on the next tick.
+     */
+    int KEEP_TICKING = 0;
+
+    /**
+     * Returned by {@link #serverTick} when the machine stays idle until its inventory or structure changes.
+     */
+    int SLEEP_UNTIL_WOKEN = Integer.MAX_VALUE;
+
+    /**
+     * The longest a machine with an eject target and a non-empty output should sleep. The target doesn't wake the machine
+     * when it has room again, so a blocked output is retried periodically.
+     */
+    int EJECT_RETRY_TICKS = 20;
+
+    /**
+     * Server-side tick processing. Called by the {@link MachineScheduler} every tick while the machine is active.
      * Follows vanilla AbstractFurnaceBlockEntity.serverTick pattern.
+     * @return The number of upcoming ticks the machine can skip because they would only do what {@link #skipTicks} does,
+     *     {@link #KEEP_TICKING} or {@link #SLEEP_UNTIL_WOKEN}.
+     */
+    default int serverTick(final Level level, final BlockPos pos, final BlockState state, final BasicControllerBlockEntity be) {
+        if(!be.verifyStructure()) {
+            return SLEEP_UNTIL_WOKEN;
+        }
+        final MachineTickResult result = computeTick(level, be);
+        applyTick(be, result);
+        return result.skippable();
+    }
+
+    /**
+     * Computes the effects of one tick of a machine whose structure is formed, without applying them.
+     * <p>
+     * This must not modify anything but the recipe cache of the block entity, as the {@link MachineScheduler} calls it
+     * from worker threads for large groups. The inventory is read in place rather than copied: nothing can modify a machine
+     * until the workers are joined, and anything that tries to throws (see {@link MachineScheduler#checkNotComputing}).
+     * @param level The level of the machine
+     * @param be    The block entity
+     * @return The effects of the tick
+     */
+    MachineTickResult computeTick(Level level, BasicControllerBlockEntity be);
+
+    /**
+     * Applies the effects of a tick computed by {@link #computeTick}. Always called on the server thread.
+     * <p>
+     * This is where the output stage runs: see {@link BasicControllerBlockEntity#ejectOutput}.
+     * @param be     The block entity
+     * @param result The effects of the tick
+     */
+    void applyTick(BasicControllerBlockEntity be, MachineTickResult result);
+
+    /**
+     * Applies the effects of ticks the machine skipped while it was sleeping.
+     * <p>
+     * Only called for ticks {@link #serverTick} reported as skippable, which must be ticks whose effects are plain arithmetic
+     * on the machine data (e.g. fuel burning, progress advancing) until the next event such as a craft completing.
+     * The result must be identical to ticking the machine once per skipped tick.
+     * @param be    The block entity
+     * @param ticks The number of skipped ticks
+     */
+    void skipTicks(BasicControllerBlockEntity be, int ticks);
+
+    /**
+     * Applies ticks the machine missed, as if it was ticked once per tick. These are the ticks that passed while its chunk
+     * was unloaded, or the ticks the {@link MachineScheduler} deferred because its time budget ran out.
+     * <p>
+     * Only called when the structure is formed. Implementations should compute the result in closed form
+     * rather than simulating each tick.
+     * @param be    The block entity
+     * @param level The level of the machine
+     * @param ticks The number of ticks that passed
      */
-    void serverTick(Level level, BlockPos pos, BlockState state, BasicControllerBlockEntity be);
+    void simulateUnloadedTicks(BasicControllerBlockEntity be, ServerLevel level, long ticks);
 
     /**
      * Save machine-specific data.
@@ -0,0 +1,716 @@
+package com.gnottero.cassiopeia.content.machine;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+
+import com.gnottero.cassiopeia.config.CassiopeiaConfig;
+import com.gnottero.cassiopeia.content.block.entity.BasicControllerBlockEntity;
+import com.gnottero.cassiopeia.content.recipe.RecipeIndex;
+
+
+
+
+/**
+ * Ticks the machines of a server level, skipping the ones that are idle.
+ * <p>
+ * After each tick, the handler of a machine reports how many of the upcoming ticks it can skip.
+ * Machines that can skip ticks are put to sleep until their deadline (e.g. their fuel running out) or until they're woken
+ * by an inventory change or a structure state change, whichever comes first.
+ * <p>
+ * The ticks a machine skipped are applied through {@link MachineHandler#skipTicks} when it's woken or when its data is read,
+ * so sleeping machines stay identical to machines ticked every tick.
+ * <p>
+ * Active machines are grouped by handler. Each group is ticked in one loop, and the machine data of its members is moved
+ * into the group's column arrays (one dense int array per data index) while they're active.
+ * <p>
+ * Large groups are ticked in two phases: the ticks are computed with {@link MachineHandler#computeTick} in parallel,
+ * one chunk of machines per core, then applied with {@link MachineHandler#applyTick} serially in the group order.
+     * Machine ticks only read and write their own machine, so the result is identical to ticking the group serially.
+ * Nothing may modify a machine while the ticks are computed, which {@link #checkNotComputing} enforces.
+ * Machines that were modified by a previous machine after their tick was computed are ticked again serially.
+ * <p>
+ * The machines of a level share a time budget per tick (see {@link CassiopeiaConfig}), which shrinks when the server lags
+ * to leave the tick time to the rest of the server. Once it runs out, the remaining machines
+ * are deferred: their tick is owed and credited in closed form through {@link MachineHandler#simulateUnloadedTicks}
+ * the next time they're ticked, so the throughput is preserved. The next tick starts from the first deferred machine.
+ * <p>
+ * This must only be used from the server thread.
+ */
+public class MachineScheduler {
+
+    // The scheduler of each server level
+    private static final Map<ServerLevel, MachineScheduler> schedulers = new ConcurrentHashMap<>();
+
+    // Groups with fewer ticking machines than this are ticked serially, as the parallel phase costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 128;
+
+    // The workers that compute the ticks of large groups, or null if the server isn't running. The server thread computes one of the chunks itself
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static @Nullable ForkJoinPool workers = null;
+
+    // Whether the ticks of a group are being computed in parallel. Machines must not be modified meanwhile, see checkNotComputing
+    private static volatile boolean computePhase = false;
+
+    private final ServerLevel level;
+
+    // The groups of active machines, by handler. The list is used for iteration. Groups are never removed, so their index is stable
+    private final Reference2ObjectOpenHashMap<MachineHandler, MachineGroup> groups = new Reference2ObjectOpenHashMap<>();
+    private final ObjectArrayList<MachineGroup> groupList = new ObjectArrayList<>();
+
+    // The machines that are ticked every tick, mapped to their group
+    private final Reference2ObjectOpenHashMap<BasicControllerBlockEntity, MachineGroup> active = new Reference2ObjectOpenHashMap<>();
+
+    // The sleeping machines, mapped to the last game tick that was applied to them
+    private final Reference2LongOpenHashMap<BasicControllerBlockEntity> sleeping = new Reference2LongOpenHashMap<>();
+
+    // The deadline of each sleeping machine that has one
+    private final Reference2LongOpenHashMap<BasicControllerBlockEntity> wakeTimes = new Reference2LongOpenHashMap<>();
+
+    // The deadlines ordered by time. Entries that don't match the machine's current deadline are skipped when polled
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>((a, b) -> Long.compare(a.time(), b.time()));
+
+    // Machines loaded from a chunk since the last tick, whose unloaded ticks still need to be simulated
+    private final ObjectArrayList<BasicControllerBlockEntity> reloaded = new ObjectArrayList<>();
+
+    // The number of ticks each deferred machine is owed
+    private final Reference2IntOpenHashMap<BasicControllerBlockEntity> deferred = new Reference2IntOpenHashMap<>();
+
+    // The time the machines of the level took per tick, averaged over the last ticks. Used to tell the MSPT of the rest of the server
+    private long machineNanos = 0;
+
+    // The time budget of the current tick, when it started and whether it ran out
+    private long budgetNanos = 0;
+    private long tickStart = 0;
+    private boolean deferring = false;
+
+    // The group index and machine the next tick starts from. Set to the first machine deferred by the last tick that ran out of time.
+    // The machine is tracked by identity, as members change slot when other members are removed. Null to start from the first member
+    private int resumeGroup = 0;
+    private @Nullable BasicControllerBlockEntity resumeMachine = null;
+
+    // Metrics
+    private long deferredTickCount = 0;
+    private long overBudgetTickCount = 0;
+
+    // The game time of the last tick, used to tell if active machines were already ticked when they're saved
+    private long lastTickTime = -1;
+
+    // A reusable copy of the members of the group being ticked. Ticking a machine can wake or unload other machines
+    private BasicControllerBlockEntity[] ticking = new BasicControllerBlockEntity[16];
+
+    // The machines whose tick is computed in parallel, their computed ticks and their modification count when they were computed
+    private BasicControllerBlockEntity[] computing = new BasicControllerBlockEntity[16];
+    private MachineTickResult[] results = new MachineTickResult[16];
+    private int[] modificationCounts = new int[16];
+
+    private record Deadline(long time, @NotNull BasicControllerBlockEntity machine) {}
+
+
+
+
+    /**
+     * The active machines that share a handler.
+     * <p>
+     * Members are stored densely and removed by moving the last member into their slot.
+     * Their machine data is stored in the columns at their slot index.
+     */
+    private static final class MachineGroup {
+        final MachineHandler handler;
+        final int[][] columns;
+        BasicControllerBlockEntity[] machines = new BasicControllerBlockEntity[16];
+        final Reference2IntOpenHashMap<BasicControllerBlockEntity> slots = new Reference2IntOpenHashMap<>();
+        int size = 0;
+
+        // The average time ticking a member in parallel took, used to stop admitting machines before the budget runs out
+        long nanosPerMachine = 0;
+
+        MachineGroup(final @NotNull MachineHandler handler) {
+            this.handler = handler;
+            this.columns = new int[handler.getDataCount()][machines.length];
+        }
+
+        void add(final @NotNull BasicControllerBlockEntity machine) {
+            if(size == machines.length) {
+                machines = Arrays.copyOf(machines, size * 2);
+                for(int i = 0; i < columns.length; i++) {
+                    columns[i] = Arrays.copyOf(columns[i], size * 2);
+                }
+            }
+            machines[size] = machine;
+            slots.put(machine, size);
+            machine.moveMachineData(columns, size);
+            size++;
+        }
+
+        /**
+         * Removes a member.
+         * @param machine The member.
+         * @return The member that was moved into its slot, or null if it was the last member.
+         */
+        @Nullable BasicControllerBlockEntity remove(final @NotNull BasicControllerBlockEntity machine) {
+            final int slot = slots.removeInt(machine);
+            machine.moveMachineData(null, 0);
+
+            // Move the last member into the free slot
+            final int last = --size;
+            BasicControllerBlockEntity moved = null;
+            if(slot != last) {
+                moved = machines[last];
+                machines[slot] = moved;
+                slots.put(moved, slot);
+                moved.moveMachineData(columns, slot);
+            }
+            machines[last] = null;
+            return moved;
+        }
+    }
+
+
+
+
+    private MachineScheduler(final @NotNull ServerLevel level) {
+        this.level = level;
+        this.wakeTimes.defaultReturnValue(-1L);
+    }
+
+
+    /**
+     * Returns the scheduler of a level, creating it if needed.
+     * @param level The level.
+     * @return The scheduler.
+     */
+    public static @NotNull MachineScheduler get(final @NotNull ServerLevel level) {
+        return schedulers.computeIfAbsent(level, MachineScheduler::new);
+    }
+
+
+    /**
+     * Returns the scheduler of a level if it exists.
+     * @param level The level.
+     * @return The scheduler, or null if the level has none.
+     */
+    public static @Nullable MachineScheduler getIfPresent(final @NotNull ServerLevel level) {
+        return schedulers.get(level);
+    }
+
+
+    /**
+     * Discards the scheduler of a level. This should be called when the level is unloaded.
+     * @param level The level.
+     */
+    public static void remove(final @NotNull ServerLevel level) {
+        schedulers.remove(level);
+    }
+
+
+    /**
+     * Discards the schedulers of all the levels.
+     */
+    public static void unregisterAll() {
+        schedulers.clear();
+    }
+
+
+    /**
+     * Starts the workers that compute the ticks of large groups. This should be called when the server starts.
+     */
+    public static void startWorkers() {
+        stopWorkers();
+        if(PARALLELISM > 1) {
+            workers = new ForkJoinPool(PARALLELISM - 1, pool -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Cassiopeia Machine Worker-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+        }
+    }
+
+
+    /**
+     * Stops the workers started by {@link #startWorkers}, waiting for them to terminate. This should be called when the server stops,
+     * so that the threads of a singleplayer world don't outlive it.
+     */
+    public static void stopWorkers() {
+        if(workers != null) {
+            workers.close();
+            workers = null;
+        }
+    }
+
+
+    /**
+     * Checks that no group is having its ticks computed in parallel. Called by everything that modifies a machine.
+     * <p>
+     * The parallel phase reads the inventories of the machines and fills their recipe caches without locking.
+     * This is only safe because each machine is computed by a single thread and nothing else touches the machines until
+     * the workers are joined: the server thread computes a chunk itself, so the only code that runs meanwhile is {@link MachineHandler#computeTick}.
+     * @throws IllegalStateException if the ticks of a group are being computed.
+     */
+    public static void checkNotComputing() {
+        if(computePhase) {
+            throw new IllegalStateException("Machines must not be modified while their ticks are computed in parallel");
+        }
+    }
+
+
+    /**
+     * Wakes all the sleeping machines of all the levels.
+     * <p>
+     * This should be called when the recipes are reloaded, as sleeping machines might have a recipe now.
+     */
+    public static void wakeAll() {
+        for(final MachineScheduler scheduler : schedulers.values()) {
+            for(final BasicControllerBlockEntity machine : new ReferenceArrayList<>(scheduler.sleeping.keySet())) {
+                scheduler.wake(machine);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Starts ticking a machine. This should be called when its block entity is loaded.
+     * @param machine The block entity of the machine.
+     */
+    public void add(final @NotNull BasicControllerBlockEntity machine) {
+        if(!sleeping.containsKey(machine) && !active.containsKey(machine)) {
+            activate(machine);
+            if(machine.getUnloadedTick() >= 0) {
+                reloaded.add(machine);
+            }
+        }
+    }
+
+
+    /**
+     * Stops ticking a machine. This should be called when its block entity is unloaded or removed.
+     * @param machine The block entity of the machine.
+     */
+    public void remove(final @NotNull BasicControllerBlockEntity machine) {
+        deactivate(machine);
+        sleeping.removeLong(machine);
+        wakeTimes.removeLong(machine);
+        deferred.removeInt(machine);
+    }
+
+
+    /**
+     * Wakes a sleeping machine, applying the ticks it skipped. Does nothing if the machine is not sleeping.
+     * @param machine The block entity of the machine.
+     */
+    public void wake(final @NotNull BasicControllerBlockEntity machine) {
+        if(!sleeping.containsKey(machine)) return;
+        catchUp(machine);
+        sleeping.removeLong(machine);
+        wakeTimes.removeLong(machine);
+        activate(machine);
+    }
+
+
+    /**
+     * Moves an active machine to the group of its current handler. This should be called when its structure ID changes.
+     * @param machine The block entity of the machine.
+     */
+    public void regroup(final @NotNull BasicControllerBlockEntity machine) {
+        if(active.containsKey(machine)) {
+            deactivate(machine);
+            activate(machine);
+        }
+    }
+
+
+    private void activate(final @NotNull BasicControllerBlockEntity machine) {
+
+        // Machines without a handler have nothing to tick
+        final Optional<MachineHandler> handler = machine.getHandler();
+        if(handler.isEmpty()) {
+            sleeping.put(machine, level.getGameTime());
+            return;
+        }
+
+        MachineGroup group = groups.get(handler.get());
+        if(group == null) {
+            group = new MachineGroup(handler.get());
+            groups.put(handler.get(), group);
+            groupList.add(group);
+        }
+        group.add(machine);
+        active.put(machine, group);
+    }
+
+
+    private void deactivate(final @NotNull BasicControllerBlockEntity machine) {
+        final MachineGroup group = active.remove(machine);
+        if(group != null) {
+            final BasicControllerBlockEntity moved = group.remove(machine);
+
+            // Resume from the machine that took its slot. It came after it in the rotation, so it was deferred too.
+            // If there is none, the machine was the last member and the rotation continues with the next group
+            if(machine == resumeMachine) {
+                resumeMachine = moved;
+                if(moved == null) {
+                    resumeGroup = (resumeGroup + 1) % groupList.size();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Applies the ticks a sleeping machine skipped up to the current tick, without waking it.
+     * Does nothing if the machine is not sleeping.
+     * @param machine The block entity of the machine.
+     */
+    public void catchUp(final @NotNull BasicControllerBlockEntity machine) {
+        if(!sleeping.containsKey(machine)) return;
+
+        // The current tick is simulated by tick() if the machine is woken before the end of the tick
+        final long applied = sleeping.getLong(machine);
+        final long skipped = level.getGameTime() - 1 - applied;
+        if(skipped > 0) {
+            sleeping.put(machine, applied + skipped);
+            machine.skipTicks((int) Math.min(skipped, Integer.MAX_VALUE));
+        }
+    }
+
+
+    /**
+     * Checks if a machine is active or sleeping in this scheduler.
+     * @param machine The block entity of the machine.
+     * @return True if the machine is tracked, false otherwise.
+     */
+    public boolean isTracked(final @NotNull BasicControllerBlockEntity machine) {
+        return active.containsKey(machine) || sleeping.containsKey(machine);
+    }
+
+
+    /**
+     * Returns the first game tick whose effects were not applied to a machine yet.
+     * <p>
+     * Sleeping machines are caught up first, so the result is the current game time unless the machine was already ticked
+     * or is owed deferred ticks.
+     * @param machine The block entity of the machine.
+     * @return The game tick.
+     */
+    public long getNextTick(final @NotNull BasicControllerBlockEntity machine) {
+        final long time = level.getGameTime();
+        catchUp(machine);
+        return (active.containsKey(machine) && lastTickTime == time ? time + 1 : time) - deferred.getInt(machine);
+    }
+
+
+    /**
+     * Ticks the active machines and wakes the sleeping machines whose deadline was reached.
+     * This should be called once per tick, after the structure validator was flushed.
+     */
+    public void tick() {
+        final long time = level.getGameTime();
+        lastTickTime = time;
+
+        // Simulate the ticks the reloaded machines missed while their chunk was unloaded.
+        //! This waits for the first tick after loading as the structure can't be registered while its chunk is loading
+        for(final BasicControllerBlockEntity machine : reloaded) {
+            if(!machine.isRemoved()) {
+                machine.simulateUnloadedTicks(time);
+            }
+        }
+        reloaded.clear();
+
+        // Wake the machines whose deadline was reached
+        while(!deadlines.isEmpty() && deadlines.peek().time() <= time) {
+            final Deadline deadline = deadlines.poll();
+            if(wakeTimes.getLong(deadline.machine()) == deadline.time()) {
+                wake(deadline.machine());
+            }
+        }
+
+        // Tick each group of active machines and put the idle ones to sleep, starting from the first machine deferred by the last tick
+        budgetNanos = computeBudget();
+        tickStart = System.nanoTime();
+        deferring = false;
+        final int groupCount = groupList.size();
+        final int firstGroup = resumeGroup < groupCount ? resumeGroup : 0;
+        final BasicControllerBlockEntity firstMachine = resumeMachine;
+        resumeGroup = 0;
+        resumeMachine = null;
+        for(int k = 0; k < groupCount; k++) {
+            final int g = (firstGroup + k) % groupCount;
+            final MachineGroup group = groupList.get(g);
+            final int size = group.size;
+            final int first = k == 0 && firstMachine != null && group.slots.containsKey(firstMachine) ? group.slots.getInt(firstMachine) : 0;
+            if(ticking.length < size) {
+                ticking = new BasicControllerBlockEntity[group.machines.length];
+            }
+            System.arraycopy(group.machines, first, ticking, 0, size - first);
+            System.arraycopy(group.machines, 0, ticking, size - first, first);
+
+            if(size >= PARALLEL_THRESHOLD && workers != null) {
+                tickParallel(group, g, size, time);
+            }
+            else {
+                tickSerial(group, g, size, time);
+            }
+        }
+        if(deferring) {
+            overBudgetTickCount++;
+        }
+
+        // Update the average, weighting the last tick by 1/4
+        machineNanos = (machineNanos * 3 + System.nanoTime() - tickStart) / 4;
+    }
+
+
+    /**
+     * Computes the time budget of the current tick.
+     * <p>
+     * This is the configured budget, unless the rest of the server leaves less time than that in the tick:
+     * then the machines of each level get their share of the time that's left, or the configured minimum if there is none.
+     * The time of the rest of the server is the average MSPT minus the time the machines of all the levels took.
+     * @return The budget in nanoseconds, or 0 if the budget is disabled.
+     */
+    private long computeBudget() {
+        final CassiopeiaConfig config = CassiopeiaConfig.get();
+        final long max = config.getMachineTickBudgetNanos();
+        if(max == 0) return 0;
+
+        long allMachineNanos = 0;
+        for(final MachineScheduler scheduler : schedulers.values()) {
+            allMachineNanos += scheduler.machineNanos;
+        }
+        final MinecraftServer server = level.getServer();
+        final long others = server.getAverageTickTimeNanos() - allMachineNanos;
+        final long headroom = (server.tickRateManager().nanosecondsPerTick() - others) / Math.max(1, schedulers.size());
+        return Math.min(max, Math.max(config.getMinMachineTickBudgetNanos(), headroom));
+    }
+
+
+    /**
+     * Ticks the machines copied in {@link #ticking} one by one.
+     * @param group The group of the machines.
+     * @param g     The index of the group.
+     * @param size  The number of machines.
+     * @param time  The current game time.
+     */
+    private void tickSerial(final @NotNull MachineGroup group, final int g, final int size, final long time) {
+        final MachineHandler handler = group.handler;
+        for(int i = 0; i < size; i++) {
+            final BasicControllerBlockEntity machine = ticking[i];
+            ticking[i] = null;
+            if(machine.isRemoved() || !machine.isMachineDataIn(group.columns)) continue; //! Removed or regrouped by a previous machine
+            if(!level.shouldTickBlocksAt(machine.getBlockPos())) continue;
+            if(shouldDefer(g, machine, 0)) {
+                defer(machine);
+                continue;
+            }
+
+            creditDeferredTicks(machine);
+            final int skippable = handler.serverTick(level, machine.getBlockPos(), machine.getBlockState(), machine);
+            if(skippable > 0 && machine.isMachineDataIn(group.columns)) {
+                sleep(machine, time, skippable);
+            }
+        }
+    }
+
+
+    /**
+     * Ticks the machines copied in {@link #ticking} in two phases, computing their ticks in parallel.
+     * @param group The group of the machines.
+     * @param g     The index of the group.
+     * @param size  The number of machines.
+     * @param time  The current game time.
+     */
+    private void tickParallel(final @NotNull MachineGroup group, final int g, final int size, final long time) {
+        final MachineHandler handler = group.handler;
+        final long groupStart = System.nanoTime();
+        if(computing.length < size) {
+            computing = new BasicControllerBlockEntity[ticking.length];
+            results = new MachineTickResult[ticking.length];
+            modificationCounts = new int[ticking.length];
+        }
+
+        // Check the structures on the server thread, as it can register them. Nothing in here changes the other machines.
+        // Machines are only admitted while the estimated time of the admitted ones fits in the budget
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            final BasicControllerBlockEntity machine = ticking[i];
+            ticking[i] = null;
+            if(machine.isRemoved() || !machine.isMachineDataIn(group.columns)) continue;
+            if(!level.shouldTickBlocksAt(machine.getBlockPos())) continue;
+            if(shouldDefer(g, machine, count * group.nanosPerMachine)) {
+                defer(machine);
+                continue;
+            }
+
+            creditDeferredTicks(machine);
+            if(!machine.verifyStructure()) {
+                if(machine.isMachineDataIn(group.columns)) {
+                    sleep(machine, time, MachineHandler.SLEEP_UNTIL_WOKEN);
+                }
+                continue;
+            }
+            computing[count] = machine;
+            modificationCounts[count] = machine.getModificationCount();
+            count++;
+        }
+        if(count == 0) return;
+
+        // Compute the ticks, one chunk per core. The server thread computes the last chunk and waits for the others
+        RecipeIndex.prepare(level);
+        final int chunkSize = (count + PARALLELISM - 1) / PARALLELISM;
+        final int chunkCount = (count + chunkSize - 1) / chunkSize;
+        final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunkCount - 1];
+        computePhase = true;
+        try {
+            for(int c = 0; c < tasks.length; c++) {
+                final int from = c * chunkSize;
+                final int to = from + chunkSize;
+                tasks[c] = workers.submit(() -> computeTicks(handler, from, to));
+            }
+            computeTicks(handler, tasks.length * chunkSize, count);
+        }
+        finally {
+            //! Wait for all the workers before allowing modifications again, even if a chunk failed
+            for(final ForkJoinTask<?> task : tasks) {
+                if(task != null) task.quietlyJoin();
+            }
+            computePhase = false;
+        }
+        for(final ForkJoinTask<?> task : tasks) {
+            task.join(); // Rethrows the exceptions of the workers
+        }
+
+        // Apply the ticks in order
+        for(int i = 0; i < count; i++) {
+            final BasicControllerBlockEntity machine = computing[i];
+            final MachineTickResult result = results[i];
+            computing[i] = null;
+            results[i] = null;
+            if(machine.isRemoved() || !machine.isMachineDataIn(group.columns)) continue;
+
+            //! Modified by a previous machine after the tick was computed. Tick it again to match the serial order
+            final int skippable;
+            if(machine.getModificationCount() != modificationCounts[i]) {
+                skippable = handler.serverTick(level, machine.getBlockPos(), machine.getBlockState(), machine);
+            }
+            else {
+                handler.applyTick(machine, result);
+                skippable = result.skippable();
+            }
+            if(skippable > 0 && machine.isMachineDataIn(group.columns)) {
+                sleep(machine, time, skippable);
+            }
+        }
+
+        // Update the average, weighting the last tick by 1/4
+        final long elapsed = (System.nanoTime() - groupStart) / count;
+        group.nanosPerMachine = (group.nanosPerMachine * 3 + elapsed) / 4;
+    }
+
+
+    private void computeTicks(final @NotNull MachineHandler handler, final int from, final int to) {
+        for(int i = from; i < to; i++) {
+            results[i] = handler.computeTick(level, computing[i]);
+        }
+    }
+
+
+    /**
+     * Checks if the budget of the current tick ran out, starting to defer machines if it did.
+     * @param g          The group index of the machine about to be ticked.
+     * @param machine    The machine about to be ticked.
+     * @param extraNanos The estimated time of work that was admitted but not done yet.
+     * @return True if the machine must be deferred, false otherwise.
+     */
+    private boolean shouldDefer(final int g, final @NotNull BasicControllerBlockEntity machine, final long extraNanos) {
+        if(!deferring && budgetNanos > 0 && System.nanoTime() - tickStart + extraNanos >= budgetNanos) {
+            deferring = true;
+            resumeGroup = g;
+            resumeMachine = machine;
+        }
+        return deferring;
+    }
+
+
+    private void defer(final @NotNull BasicControllerBlockEntity machine) {
+        deferred.addTo(machine, 1);
+        deferredTickCount++;
+    }
+
+
+    /**
+     * Applies the ticks a machine is owed because it was deferred, before it's ticked again.
+     * @param machine The block entity of the machine.
+     */
+    private void creditDeferredTicks(final @NotNull BasicControllerBlockEntity machine) {
+        final int owed = deferred.removeInt(machine);
+        if(owed > 0) {
+            machine.simulateTicks(owed);
+        }
+    }
+
+
+    private void sleep(final @NotNull BasicControllerBlockEntity machine, final long time, final int skippable) {
+        deactivate(machine);
+        sleeping.put(machine, time);
+        if(skippable != MachineHandler.SLEEP_UNTIL_WOKEN) {
+            final long wakeTime = time + skippable + 1;
+            wakeTimes.put(machine, wakeTime);
+            deadlines.add(new Deadline(wakeTime, machine));
+        }
+    }
+
+
+
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+
+    public int getSleepingCount() {
+        return sleeping.size();
+    }
+
+
+    public int getDeferredCount() {
+        return deferred.size();
+    }
+
+
+    public long getDeferredTickCount() {
+        return deferredTickCount;
+    }
+
+
+    /**
+     * Returns the time budget of the last tick, see {@link #computeBudget}.
+     * @return The budget in microseconds, or 0 if the budget is disabled.
+     */
+    public long getBudgetMicros() {
+        return budgetNanos / 1000;
+    }
+
+
+    public long getOverBudgetTickCount() {
+        return overBudgetTickCount;
+    }
+}
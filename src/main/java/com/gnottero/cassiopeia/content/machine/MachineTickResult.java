@@ -0,0 +1,19 @@
+package com.gnottero.cassiopeia.content.machine;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.world.item.crafting.RecipeHolder;
+
+
+
+
+/**
+ * The effects of one machine tick, computed by {@link MachineHandler#computeTick} and applied by {@link MachineHandler#applyTick}.
+ * @param data        The new machine data, indexed like the data slots of the handler.
+ * @param consumeFuel Whether a fuel item is consumed.
+ * @param craft       The recipe whose craft completes this tick, or null.
+ * @param changed     Whether the block entity needs to be marked as changed.
+ * @param skippable   The number of upcoming ticks the machine can skip, as returned by {@link MachineHandler#serverTick}.
+ */
+public record MachineTickResult(int @NotNull [] data, boolean consumeFuel, @Nullable RecipeHolder<?> craft, boolean changed, int skippable) {}
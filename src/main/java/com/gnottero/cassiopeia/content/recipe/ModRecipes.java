@@ -14,6 +14,9 @@ import net.minecraft.world.item.crafting.RecipeType;
 public class ModRecipes {
     private ModRecipes() {}
 
+    // Incremented every time the datapacks are reloaded. Used to invalidate the recipes cached by the machines
+    private static int reloadGeneration = 0;
+
 
 
 
@@ -69,6 +72,24 @@ public class ModRecipes {
     );
 
 
+    /**
+     * Returns the number of times the recipes were reloaded since the game started.
+     * Recipe holders cached with a different generation might not be part of the recipe manager anymore.
+     * @return The current generation.
+     */
+    public static int getReloadGeneration() {
+        return reloadGeneration;
+    }
+
+
+    /**
+     * Invalidates the cached recipes. This should be called after the datapacks are reloaded.
+     */
+    public static void onRecipesReloaded() {
+        reloadGeneration++;
+    }
+
+
     public static void registerRecipes() {
         Cassiopeia.LOGGER.info("Registering Recipes for " + Cassiopeia.MOD_ID);
 
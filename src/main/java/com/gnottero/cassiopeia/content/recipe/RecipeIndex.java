@@ -0,0 +1,229 @@
+package com.gnottero.cassiopeia.content.recipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+
+import net.minecraft.core.Holder;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.crafting.Recipe;
+import net.minecraft.world.item.crafting.RecipeHolder;
+import net.minecraft.world.item.crafting.RecipeInput;
+import net.minecraft.world.item.crafting.RecipeManager;
+import net.minecraft.world.item.crafting.RecipeType;
+import net.minecraft.world.item.crafting.SingleRecipeInput;
+import net.minecraft.world.level.Level;
+
+
+
+
+/**
+ * Item-indexed lookup tables for the machine recipes.
+ * <p>
+ * The recipe manager tests every recipe of a type against the inputs. The index maps each input item to the crushing recipes
+ * it could match, and each unordered pair of input items to the alloying recipes they could match, so only a handful of
+ * candidates are tested. Candidates keep the order of the recipe manager, so the result is the same recipe it would return.
+ * <p>
+ * The index is rebuilt lazily when the recipe manager changes, which happens every time the datapacks are reloaded.
+ * This must only be used from the server thread, except for lookups made while the server thread waits for them
+ * after calling {@link #prepare} (e.g. by the machine tick workers), which never rebuild the tables.
+ */
+public final class RecipeIndex {
+    private RecipeIndex() {}
+
+    // The recipe manager the tables were built from
+    private static @Nullable RecipeManager indexedManager = null;
+
+    // The tables of the recipes of the indexed manager
+    private static Tables tables = new Tables(List.of());
+
+
+
+
+    /**
+     * The lookup tables of a list of recipes. Recipes of other types are ignored.
+     * <p>
+     * The tables are immutable once built, so lookups can be made from any thread.
+     */
+    public static final class Tables {
+
+        // Input item -> crushing recipes whose input accepts that item
+        private final Reference2ObjectOpenHashMap<Item, List<RecipeHolder<CrushingRecipe>>> crushingByItem = new Reference2ObjectOpenHashMap<>();
+
+        // Unordered pair of input item IDs (see pairKey) -> alloying recipes that accept those items, in either slot order
+        private final Long2ObjectOpenHashMap<List<RecipeHolder<AlloyingRecipe>>> alloyingByPair = new Long2ObjectOpenHashMap<>();
+
+        private int maxCandidates = 0;
+
+
+        /**
+         * Builds the tables of a list of recipes.
+         * @param recipes The recipes, in the order of the recipe manager.
+         */
+        @SuppressWarnings("unchecked")
+        public Tables(final @NotNull Iterable<? extends RecipeHolder<?>> recipes) {
+            for(final RecipeHolder<?> holder : recipes) {
+                final Recipe<?> recipe = holder.value();
+
+                // Crushing recipes are indexed by each item their input accepts
+                if(recipe.getType() == ModRecipes.CRUSHING_TYPE) {
+                    final RecipeHolder<CrushingRecipe> crushing = (RecipeHolder<CrushingRecipe>) holder;
+                    for(final Item item : getItems(crushing.value().getInput())) {
+                        addCandidate(crushingByItem.computeIfAbsent(item, k -> new ArrayList<>()), crushing);
+                    }
+                }
+
+                // Alloying recipes are indexed by each pair of items their inputs accept
+                else if(recipe.getType() == ModRecipes.ALLOYING_TYPE) {
+                    final RecipeHolder<AlloyingRecipe> alloying = (RecipeHolder<AlloyingRecipe>) holder;
+                    final List<Item> itemsA = getItems(alloying.value().getInputA());
+                    final List<Item> itemsB = getItems(alloying.value().getInputB());
+                    for(final Item a : itemsA) {
+                        for(final Item b : itemsB) {
+                            addCandidate(alloyingByPair.computeIfAbsent(pairKey(a, b), k -> new ArrayList<>()), alloying);
+                        }
+                    }
+                }
+            }
+        }
+
+
+        private <T extends Recipe<?>> void addCandidate(final @NotNull List<RecipeHolder<T>> candidates, final @NotNull RecipeHolder<T> holder) {
+
+            //! Recipes are added in order, so a duplicate (e.g. a pair matching both slot orders) can only be the last element
+            if(candidates.isEmpty() || candidates.get(candidates.size() - 1) != holder) {
+                candidates.add(holder);
+                maxCandidates = Math.max(maxCandidates, candidates.size());
+            }
+        }
+
+
+        /**
+         * Returns the first crushing recipe that matches the input.
+         * @param input The input.
+         * @param level The level.
+         * @return The matching recipe, or an empty Optional if no recipe matches.
+         */
+        public Optional<RecipeHolder<CrushingRecipe>> findCrushing(final @NotNull SingleRecipeInput input, final @NotNull Level level) {
+            return findFirst(crushingByItem.get(input.item().getItem()), input, level);
+        }
+
+
+        /**
+         * Returns the first alloying recipe that matches the inputs, in either slot order.
+         * @param input The inputs.
+         * @param level The level.
+         * @return The matching recipe, or an empty Optional if no recipe matches.
+         */
+        public Optional<RecipeHolder<AlloyingRecipe>> findAlloying(final @NotNull AlloyingRecipeInput input, final @NotNull Level level) {
+            if(input.inputA().isEmpty() || input.inputB().isEmpty()) return Optional.empty(); //! Ingredients never match empty stacks
+            return findFirst(alloyingByPair.get(pairKey(input.inputA().getItem(), input.inputB().getItem())), input, level);
+        }
+    }
+
+
+
+
+    /**
+     * Returns the first recipe of a type that matches the inputs, using the lookup tables for crushing and alloying recipes.
+     * Other recipe types are delegated to the recipe manager.
+     * @param type  The recipe type.
+     * @param input The inputs.
+     * @param level The level.
+     * @return The matching recipe, or an empty Optional if no recipe matches.
+     */
+    @SuppressWarnings("unchecked")
+    public static <I extends RecipeInput, T extends Recipe<I>> Optional<RecipeHolder<T>> getRecipeFor(final @NotNull RecipeType<T> type, final @NotNull I input, final @NotNull ServerLevel level) {
+        if(type == ModRecipes.CRUSHING_TYPE && input instanceof final SingleRecipeInput single) {
+            ensureBuilt(level);
+            return (Optional<RecipeHolder<T>>) (Optional<?>) tables.findCrushing(single, level);
+        }
+        if(type == ModRecipes.ALLOYING_TYPE && input instanceof final AlloyingRecipeInput pair) {
+            ensureBuilt(level);
+            return (Optional<RecipeHolder<T>>) (Optional<?>) tables.findAlloying(pair, level);
+        }
+        return level.recipeAccess().getRecipeFor(type, input, level);
+    }
+
+
+    private static <I extends RecipeInput, T extends Recipe<I>> Optional<RecipeHolder<T>> findFirst(final @Nullable List<RecipeHolder<T>> candidates, final @NotNull I input, final @NotNull Level level) {
+        if(candidates == null) return Optional.empty();
+        for(final RecipeHolder<T> candidate : candidates) {
+            if(candidate.value().matches(input, level)) {
+                return Optional.of(candidate);
+            }
+        }
+        return Optional.empty();
+    }
+
+
+
+
+    /**
+     * Builds the tables for the current recipe manager, so that the following lookups don't modify them.
+     * This must be called from the server thread.
+     * @param level Any level of the server.
+     */
+    public static void prepare(final @NotNull ServerLevel level) {
+        ensureBuilt(level);
+    }
+
+
+    /**
+     * Rebuilds the tables if the recipe manager changed since they were built.
+     * @param level Any level of the server.
+     */
+    private static void ensureBuilt(final @NotNull ServerLevel level) {
+        final RecipeManager manager = level.getServer().getRecipeManager();
+        if(manager != indexedManager) {
+            tables = new Tables(manager.getRecipes());
+            indexedManager = manager;
+        }
+    }
+
+
+    private static @NotNull List<Item> getItems(final @NotNull IngredientWithComponents ingredient) {
+        return ingredient.ingredient().items().map(Holder::value).distinct().toList();
+    }
+
+
+    /**
+     * Computes the key of an unordered pair of items.
+     * @param a The first item.
+     * @param b The second item.
+     * @return A key that's the same for (a, b) and (b, a).
+     */
+    private static long pairKey(final @NotNull Item a, final @NotNull Item b) {
+        return pairKey(BuiltInRegistries.ITEM.getId(a), BuiltInRegistries.ITEM.getId(b));
+    }
+
+
+    static long pairKey(final int idA, final int idB) {
+        return ((long) Math.min(idA, idB) << 32) | (Math.max(idA, idB) & 0xFFFFFFFFL);
+    }
+
+
+
+
+    public static int getCrushingItemCount() {
+        return tables.crushingByItem.size();
+    }
+
+
+    public static int getAlloyingPairCount() {
+        return tables.alloyingByPair.size();
+    }
+
+
+    public static int getMaxCandidates() {
+        return tables.maxCandidates;
+    }
+}
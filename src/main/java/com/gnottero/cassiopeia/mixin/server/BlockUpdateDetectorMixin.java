@@ -1,28 +1,33 @@
 package com.gnottero.cassiopeia.mixin.server;
 
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.state.BlockState;
 
 import com.gnottero.cassiopeia.structures.IncrementalStructureValidator;
-import com.gnottero.cassiopeia.structures.IncrementalStructureValidator.BlockChangeAction;
 
 
 
 
 /**
- * A mixin that detects all block changes in a server and runs block removal / placement / change callbacks of the structure validator.
+ * A mixin that detects all block changes in a server and runs the block change callback of the level's structure validator.
+ * <p>
+ * This can run on any thread. The validator hands off changes made outside of the server thread.
  */
 @Mixin(Level.class)
 public class BlockUpdateDetectorMixin {
 
-
+    // The validator of this level, cached to skip the validator map lookup on each block change. Always null on client levels
+    @Unique
+    private @Nullable IncrementalStructureValidator cassiopeia$validator = null;
 
 
     @Inject(
@@ -30,24 +35,12 @@ public class BlockUpdateDetectorMixin {
         at = @At("HEAD")
     )
     private void onSetBlocksDirty(final BlockPos pos, final BlockState oldState, final BlockState newState, final CallbackInfo ci) {
-        final Level level = (Level)(Object)this;
-
-
-        if(!level.isClientSide()) {
-            if(oldState.isAir()) {
-                if(!newState.isAir()) {
-                    IncrementalStructureValidator.onBlockChange(level, pos, oldState, newState, BlockChangeAction.PLACE);
-                }
-                //! else return
-            }
-            else if(newState.isAir()) {
-                IncrementalStructureValidator.onBlockChange(level, pos, oldState, newState, BlockChangeAction.BREAK);
-            }
-            else {
-                final BlockState airState = Blocks.AIR.defaultBlockState();
-                IncrementalStructureValidator.onBlockChange(level, pos, oldState, airState, BlockChangeAction.BREAK);
-                IncrementalStructureValidator.onBlockChange(level, pos, airState, newState, BlockChangeAction.PLACE);
-            }
+        IncrementalStructureValidator validator = cassiopeia$validator;
+        if(validator == null) {
+            if(!((Object)this instanceof final ServerLevel level)) return;
+            validator = IncrementalStructureValidator.get(level);
+            cassiopeia$validator = validator;
         }
+        validator.onBlockChange(pos, oldState, newState);
     }
-}
\ No newline at end of file
+}
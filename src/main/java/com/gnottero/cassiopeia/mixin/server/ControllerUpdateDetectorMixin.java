@@ -31,8 +31,8 @@ public class ControllerUpdateDetectorMixin {
         final BlockEntity blockEntity = (BlockEntity)(Object)this;
         final Level level = blockEntity.getLevel();
 
-        if(level instanceof ServerLevel && blockEntity instanceof final AbstractControllerBlockEntity c) {
-            IncrementalStructureValidator.unregisterController(level, c.getBlockPos());
+        if(level instanceof final ServerLevel serverLevel && blockEntity instanceof final AbstractControllerBlockEntity c) {
+            IncrementalStructureValidator.get(serverLevel).unregisterController(c.getBlockPos());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,444 @@
+package com.gnottero.cassiopeia.structures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+
+import com.gnottero.cassiopeia.Cassiopeia;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator.ControllerData;
+
+
+
+
+
+
+
+
+/**
+ * The lookup tables the structure validator uses for a single dimension.
+ * <p>
+ * Controllers and tracked blocks are both keyed by their packed position (see {@link BlockPos#asLong()}).
+ * Tracked blocks reference their controllers through compact int handles into a controller table,
+ * so a lookup never allocates and never has to resolve a controller through a second map.
+ * <p>
+ * Controllers of large structures are not registered block by block. Their world-space bounding box is stored in a grid instead,
+ * and the blocks they contain are resolved by box containment.
+ */
+final class DimensionIndex {
+
+    /** The value returned for positions that are not tracked by any controller. */
+    static final int NO_HANDLE = -1;
+
+
+
+
+    // A map that associates each registered controller with its data, keyed by the controller's packed position
+    private final Long2ObjectOpenHashMap<ControllerData> controllers = new Long2ObjectOpenHashMap<>();
+
+
+    // The controller table. Each registered controller owns one slot, identified by its handle.
+    // Handles of unregistered controllers are recycled.
+    private ControllerData[] table = new ControllerData[16];
+    private final IntArrayList freeHandles = new IntArrayList();
+    private int handleCount = 0;
+
+
+    // A map that associates each tracked block to the controllers it could be part of.
+    // Non-negative values are the handle of the only controller.
+    // Values below NO_HANDLE encode the index of a shared handle list, which is only needed where multiple structures overlap.
+    private final Long2IntOpenHashMap blocks = new Long2IntOpenHashMap();
+    private final List<IntArrayList> sharedHandles = new ArrayList<>();
+    private final IntArrayList freeShared = new IntArrayList();
+
+
+    // A map that associates each chunk section containing at least one tracked block with a 4096-bit occupancy mask.
+    // This allows rejecting untracked positions with a single lookup and a bit test.
+    private final Long2ObjectOpenHashMap<SectionMask> sections = new Long2ObjectOpenHashMap<>();
+
+
+    // A coarse spatial index of the controllers that are tracked by bounding box rather than by block.
+    // Each chunk section is a grid bucket holding the handles of the controllers whose bounding box intersects it.
+    private final Long2ObjectOpenHashMap<IntArrayList> boxBuckets = new Long2ObjectOpenHashMap<>();
+
+
+    // The tracked blocks that changed since the last flush, in order of first change. Each block is only stored once
+    private final LongLinkedOpenHashSet dirtyBlocks = new LongLinkedOpenHashSet();
+
+
+    /** The occupancy mask of a chunk section. Each bit represents one block, indexed like vanilla's section storage (yzx). */
+    private static final class SectionMask {
+        final long[] bits = new long[64];
+        int count = 0;
+    }
+
+
+
+
+    DimensionIndex() {
+        blocks.defaultReturnValue(NO_HANDLE);
+    }
+
+
+
+
+
+
+
+
+    /**
+     * Returns the data of a registered controller.
+     * @param controllerPos The packed position of the controller.
+     * @return The controller's data, or null if the controller is not registered.
+     */
+    @Nullable ControllerData getController(final long controllerPos) {
+        return controllers.get(controllerPos);
+    }
+
+
+    /**
+     * Returns the data of the controller that owns a handle.
+     * @param handle The handle.
+     * @return The controller's data.
+     */
+    @NotNull ControllerData getController(final int handle) {
+        return table[handle];
+    }
+
+
+    /**
+     * Returns the data of all the registered controllers.
+     */
+    @NotNull Iterable<ControllerData> getControllers() {
+        return controllers.values();
+    }
+
+
+    int getControllerCount() {
+        return controllers.size();
+    }
+
+
+    /**
+     * Checks if this index is not tracking anything.
+     */
+    boolean isEmpty() {
+        return controllers.isEmpty();
+    }
+
+
+
+
+    /**
+     * Adds a controller to the controller map and assigns it a handle.
+     * @param data The data of the controller. Its position must not be registered already.
+     */
+    void addController(final @NotNull ControllerData data) {
+        final int handle;
+        if(freeHandles.isEmpty()) {
+            handle = handleCount++;
+            if(handle == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+        }
+        else {
+            handle = freeHandles.popInt();
+        }
+
+        data.handle = handle;
+        table[handle] = data;
+        controllers.put(data.pos.asLong(), data);
+    }
+
+
+    /**
+     * Removes a controller from the controller map and frees its handle.
+     * Blocks referencing the controller must be removed beforehand.
+     * @param data The data of the controller.
+     */
+    void removeController(final @NotNull ControllerData data) {
+        controllers.remove(data.pos.asLong());
+        table[data.handle] = null;
+        freeHandles.add(data.handle);
+        data.handle = NO_HANDLE;
+    }
+
+
+
+
+
+
+
+
+    /**
+     * Returns the encoded controller reference of a tracked block.
+     * <p>
+     * Use {@link #isShared(int)} and {@link #getSharedHandles(int)} to decode it.
+     * @param blockPos The packed position of the block.
+     * @return The reference, or {@link #NO_HANDLE} if the block is not tracked.
+     */
+    int getBlockRef(final long blockPos) {
+        return blocks.get(blockPos);
+    }
+
+
+    /**
+     * Checks if a block reference points to a shared handle list rather than a single handle.
+     * @param ref The reference returned by {@link #getBlockRef(long)}. Must not be {@link #NO_HANDLE}.
+     */
+    static boolean isShared(final int ref) {
+        return ref < NO_HANDLE;
+    }
+
+
+    /**
+     * Returns the handles of all the controllers referenced by a shared block reference.
+     * @param ref The reference returned by {@link #getBlockRef(long)}.
+     */
+    @NotNull IntArrayList getSharedHandles(final int ref) {
+        return sharedHandles.get(NO_HANDLE - 1 - ref);
+    }
+
+
+
+
+    /**
+     * Adds a controller to the controllers of a block, starting to track the block if needed.
+     * @param blockPos The packed position of the block.
+     * @param handle The handle of the controller.
+     */
+    void addBlock(final long blockPos, final int handle) {
+        final int ref = blocks.get(blockPos);
+
+        // Untracked block
+        if(ref == NO_HANDLE) {
+            blocks.put(blockPos, handle);
+            markSection(blockPos);
+        }
+
+        // Block that is already part of another structure. Move both handles to a shared list
+        else if(!isShared(ref)) {
+            final int sharedIndex;
+            if(freeShared.isEmpty()) {
+                sharedIndex = sharedHandles.size();
+                sharedHandles.add(new IntArrayList(2));
+            }
+            else {
+                sharedIndex = freeShared.popInt();
+            }
+            final IntArrayList list = sharedHandles.get(sharedIndex);
+            list.add(ref);
+            list.add(handle);
+            blocks.put(blockPos, NO_HANDLE - 1 - sharedIndex);
+        }
+
+        // Block that is already shared
+        else {
+            getSharedHandles(ref).add(handle);
+        }
+    }
+
+
+    /**
+     * Removes a controller from the controllers of a block, stopping tracking the block if no controllers are left.
+     * @param blockPos The packed position of the block.
+     * @param handle The handle of the controller.
+     */
+    void removeBlock(final long blockPos, final int handle) {
+        final int ref = blocks.get(blockPos);
+
+        if(ref == handle) {
+            blocks.remove(blockPos);
+            unmarkSection(blockPos);
+        }
+        else if(ref != NO_HANDLE && isShared(ref)) {
+            final IntArrayList list = getSharedHandles(ref);
+            list.rem(handle);
+
+            // Collapse lists that only reference one controller back to a single handle
+            if(list.size() == 1) {
+                blocks.put(blockPos, list.getInt(0));
+                list.clear();
+                freeShared.add(NO_HANDLE - 1 - ref);
+            }
+        }
+        else Cassiopeia.LOGGER.error("Controller to unregister not present in one of its block's list of controllers. This should never happen");
+    }
+
+
+
+
+
+
+
+
+    /**
+     * Checks if a block is tracked by at least one controller using the section occupancy masks.
+     * <p>
+     * This is cheaper than {@link #getBlockRef(long)} and is meant to reject the vast majority of block changes,
+     * which happen far away from any structure.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return True if the block is tracked, false otherwise.
+     */
+    boolean isTracked(final int x, final int y, final int z) {
+        final long sectionKey = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+
+        // Check per-block controllers
+        final SectionMask mask = sections.get(sectionKey);
+        if(mask != null) {
+            final int bit = sectionBitIndex(x, y, z);
+            if((mask.bits[bit >>> 6] & (1L << bit)) != 0) return true;
+        }
+
+        // Check bounding box controllers
+        if(!boxBuckets.isEmpty()) {
+            final IntArrayList candidates = boxBuckets.get(sectionKey);
+            if(candidates != null) {
+                for(int i = 0; i < candidates.size(); ++i) {
+                    if(table[candidates.getInt(i)].boxContains(x, y, z)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private void markSection(final long blockPos) {
+        final int x = BlockPos.getX(blockPos);
+        final int y = BlockPos.getY(blockPos);
+        final int z = BlockPos.getZ(blockPos);
+        final SectionMask mask = sections.computeIfAbsent(SectionPos.asLong(x >> 4, y >> 4, z >> 4), k -> new SectionMask());
+        final int bit = sectionBitIndex(x, y, z);
+        mask.bits[bit >>> 6] |= 1L << bit;
+        ++mask.count;
+    }
+
+
+    private void unmarkSection(final long blockPos) {
+        final int x = BlockPos.getX(blockPos);
+        final int y = BlockPos.getY(blockPos);
+        final int z = BlockPos.getZ(blockPos);
+        final long sectionKey = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        final SectionMask mask = sections.get(sectionKey);
+        if(mask == null) return;
+        final int bit = sectionBitIndex(x, y, z);
+        mask.bits[bit >>> 6] &= ~(1L << bit);
+        if(--mask.count == 0) {
+            sections.remove(sectionKey);
+        }
+    }
+
+
+    private static int sectionBitIndex(final int x, final int y, final int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+
+
+
+
+
+
+
+    /**
+     * Returns the handles of the bounding box controllers whose box intersects the chunk section of a block.
+     * <p>
+     * The candidates must still be tested with {@link ControllerData#boxContains(int, int, int)}.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The handles, or null if there are no candidates.
+     */
+    @Nullable IntArrayList getBoxCandidates(final int x, final int y, final int z) {
+        if(boxBuckets.isEmpty()) return null;
+        return boxBuckets.get(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+    }
+
+
+    /**
+     * Adds a bounding box controller to the grid bucket of each chunk section its box intersects.
+     * @param data The data of the controller. It must have a handle already.
+     */
+    void addBox(final @NotNull ControllerData data) {
+        for(int sx = data.minX >> 4; sx <= data.maxX >> 4; ++sx) {
+            for(int sy = data.minY >> 4; sy <= data.maxY >> 4; ++sy) {
+                for(int sz = data.minZ >> 4; sz <= data.maxZ >> 4; ++sz) {
+                    boxBuckets.computeIfAbsent(SectionPos.asLong(sx, sy, sz), k -> new IntArrayList()).add(data.handle);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes a bounding box controller from the grid buckets.
+     * @param data The data of the controller.
+     */
+    void removeBox(final @NotNull ControllerData data) {
+        for(int sx = data.minX >> 4; sx <= data.maxX >> 4; ++sx) {
+            for(int sy = data.minY >> 4; sy <= data.maxY >> 4; ++sy) {
+                for(int sz = data.minZ >> 4; sz <= data.maxZ >> 4; ++sz) {
+                    final long sectionKey = SectionPos.asLong(sx, sy, sz);
+                    final IntArrayList bucket = boxBuckets.get(sectionKey);
+                    if(bucket != null) {
+                        bucket.rem(data.handle);
+                        if(bucket.isEmpty()) {
+                            boxBuckets.remove(sectionKey);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+
+
+
+
+
+
+    /**
+     * Queues a changed block for revalidation.
+     * @param blockPos The packed position of the block.
+     */
+    void markDirty(final long blockPos) {
+        dirtyBlocks.add(blockPos);
+    }
+
+
+    /**
+     * Checks if any block is waiting to be revalidated.
+     */
+    boolean hasDirtyBlocks() {
+        return !dirtyBlocks.isEmpty();
+    }
+
+
+    /**
+     * Returns the packed positions of the blocks waiting to be revalidated.
+     */
+    @NotNull LongLinkedOpenHashSet getDirtyBlocks() {
+        return dirtyBlocks;
+    }
+
+
+    /**
+     * Clears the revalidation queue.
+     */
+    void clearDirtyBlocks() {
+        dirtyBlocks.clear();
+    }
+}
@@ -6,23 +6,39 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jetbrains.annotations.NotNull;
-import org.joml.Vector3i;
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
-import net.minecraft.resources.ResourceKey;
-import net.minecraft.world.level.Level;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.block.state.properties.Property;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.storage.DimensionDataStorage;
 
-import com.gnottero.cassiopeia.Cassiopeia;
+import com.gnottero.cassiopeia.config.CassiopeiaConfig;
 import com.gnottero.cassiopeia.content.block.ModBlocks;
 import com.gnottero.cassiopeia.content.block.entity.AbstractControllerBlockEntity;
 import com.gnottero.cassiopeia.structures.Structure.BlockEntry;
+import com.gnottero.cassiopeia.structures.Structure.OffsetTable;
 import com.gnottero.cassiopeia.structures.Structure.StructureError;
+import com.gnottero.cassiopeia.structures.StructureEvents.StructureState;
+import com.gnottero.cassiopeia.structures.TombstoneData.Tombstone;
 import com.gnottero.cassiopeia.utils.Utils;
 
 
@@ -35,58 +51,291 @@ import com.gnottero.cassiopeia.utils.Utils;
 /**
  * A class for event-driven incremental structure validation.
  * <p>
- * This keeps track of all the blocks in a world that are part of a multiblock structure.
+ * Each server level has its own validator, which keeps track of all the blocks in the level that are part of a multiblock structure.
+ * <p>
+ * Every time any block is changed, it's queued and tested against the structures it could be part of at the end of the tick.
+ * The result is cached, which allows for structure validation in O(1) time.
  * <p>
- * Every time any block is changed, it's tested against the structures it could be part of and the result is cached.
- * This allows for structure validation in O(1) time.
+ * Concurrency model: the lookup tables are only ever read and written by the server thread, so its read path needs no locks.
+ * Block changes reported by other threads (e.g. chunk generation or lighting mods setting blocks) are appended to a locked
+ * hand-off queue, which the server thread drains before using the tables.
  */
 public class IncrementalStructureValidator {
-    private IncrementalStructureValidator() {}
 
+    // The validator of each server level
+    private static final Map<ServerLevel, IncrementalStructureValidator> validators = new ConcurrentHashMap<>();
 
 
+    // Structures with at least this many blocks are tracked by bounding box instead of registering each of their blocks.
+    // Per-block registration makes memory and registration time scale with the volume of the structure rather than the number of controllers.
+    private static final int BOUNDING_BOX_TRACKING_MIN_SIZE = 32 * 32 * 32;
 
-    /** A key that uniquely identifies a block in a level. */
-    public static record BlockKey(ResourceKey<Level> dimension, BlockPos pos) {}
+
+    /** How the blocks of a controller are tracked. */
+    public enum TrackingMode {
+        /** Each block of the structure is registered in the block lookup map. Best for small structures. */
+        PER_BLOCK,
+        /** Only the world-space bounding box of the structure is registered in a spatial index. Best for large structures. */
+        BOUNDING_BOX
+    }
+
+
+    /** The validation state of a structure. */
+    public enum ValidationState {
+        /** All the blocks of the structure match. */
+        VALID,
+        /** At least one loaded block of the structure doesn't match. */
+        INVALID,
+        /** The loaded blocks match, but part of the structure is in chunks that haven't been loaded since the controller was registered. */
+        NOT_LOADED
+    }
 
 
     /** A structure containing cached data of an existing controller block */
     @SuppressWarnings("java:S1104")
     public static class ControllerData {
+        public final BlockPos pos;
+        public final AbstractControllerBlockEntity blockEntity;
         public String structureId;
-        public List<Boolean> cachedBlocks;
         public Direction direction;
         public Structure structure;
         public int valid;
+        public final TrackingMode trackingMode;
+
+        // The last state published for this controller
+        public StructureState state = StructureState.UNREGISTERED;
+
+        // The number of chunks of the structure that were not loaded yet when it was registered.
+        // Their blocks stay invalid until the chunks are loaded and scanned
+        public int unloadedChunks;
+
+        // The world-space bounding box of the structure
+        public final int minX;
+        public final int minY;
+        public final int minZ;
+        public final int maxX;
+        public final int maxY;
+        public final int maxZ;
+
+        // Validity flags of the structure's blocks, packed 64 per long and indexed like the structure's block list
+        private final long[] cachedBlocks;
+        private final int size;
+
+        // The handle of the controller in its dimension's controller table
+        int handle = DimensionIndex.NO_HANDLE;
 
         public ControllerData(
+            final @NotNull BlockPos pos,
+            final @NotNull AbstractControllerBlockEntity blockEntity,
             final @NotNull String structureId,
-            final @NotNull List<Boolean> cachedBlocks,
+            final int size,
             final @NotNull Direction direction,
-            final @NotNull Structure structure,
-            final @NotNull Integer validBlocks
+            final @NotNull Structure structure
         ) {
+            this.pos = pos;
+            this.blockEntity = blockEntity;
             this.structureId = structureId;
-            this.cachedBlocks = cachedBlocks;
+            this.cachedBlocks = new long[(size + 63) >>> 6];
+            this.size = size;
             this.direction = direction;
             this.structure = structure;
-            this.valid = validBlocks;
+            this.valid = 0;
+            this.trackingMode = size >= BOUNDING_BOX_TRACKING_MIN_SIZE ? TrackingMode.BOUNDING_BOX : TrackingMode.PER_BLOCK;
+
+            // Rotate the local corners to find the world-space bounding box
+            final BlockPos cornerA = Utils.localToGlobal(structure.getMinCorner(), pos, direction);
+            final BlockPos cornerB = Utils.localToGlobal(structure.getMaxCorner(), pos, direction);
+            this.minX = Math.min(cornerA.getX(), cornerB.getX());
+            this.minY = Math.min(cornerA.getY(), cornerB.getY());
+            this.minZ = Math.min(cornerA.getZ(), cornerB.getZ());
+            this.maxX = Math.max(cornerA.getX(), cornerB.getX());
+            this.maxY = Math.max(cornerA.getY(), cornerB.getY());
+            this.maxZ = Math.max(cornerA.getZ(), cornerB.getZ());
+        }
+
+
+        /**
+         * Checks if a position is inside the world-space bounding box of the structure.
+         * @param x The x coordinate of the position.
+         * @param y The y coordinate of the position.
+         * @param z The z coordinate of the position.
+         * @return True if the position is inside the bounding box, false otherwise.
+         */
+        public boolean boxContains(final int x, final int y, final int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+
+
+        /**
+         * Returns the number of blocks tracked by this controller.
+         */
+        public int size() {
+            return size;
+        }
+
+
+        /**
+         * Checks the cached validity flag of a block.
+         * @param index The index of the block in the structure's block list.
+         * @return True if the block was valid the last time it was checked, false otherwise.
+         */
+        public boolean isValid(final int index) {
+            return (cachedBlocks[index >>> 6] & (1L << index)) != 0;
+        }
+
+
+        /**
+         * Finds the next block that was invalid the last time it was checked.
+         * <p>
+         * Whole words of valid blocks are skipped at once, so walking all the invalid blocks
+         * costs one step per invalid block plus one per 64 blocks.
+         * @param from The index to start searching from (inclusive).
+         * @return The index of the next invalid block, or -1 if there are none.
+         */
+        public int nextInvalid(final int from) {
+            if(from >= size) return -1;
+            int word = from >>> 6;
+            long invalid = ~cachedBlocks[word] & (-1L << from);
+            while(invalid == 0) {
+                if(++word == cachedBlocks.length) return -1;
+                invalid = ~cachedBlocks[word];
+            }
+            final int index = (word << 6) + Long.numberOfTrailingZeros(invalid);
+            return index < size ? index : -1;
         }
+
+
+        /**
+         * Returns the heap used by the validity flags: the array header and 8 bytes per 64 blocks.
+         */
+        long getFlagBytes() {
+            return 16L + 8L * cachedBlocks.length;
+        }
+
+
+        /**
+         * Returns a copy of the packed validity flags.
+         */
+        public long @NotNull [] copyFlags() {
+            return cachedBlocks.clone();
+        }
+
+
+        /**
+         * Replaces the validity flags with previously saved ones and recomputes the valid blocks counter.
+         * @param flags The packed flags. Must have the same length as the controller's.
+         */
+        public void restoreFlags(final long @NotNull [] flags) {
+            System.arraycopy(flags, 0, cachedBlocks, 0, cachedBlocks.length);
+            int count = 0;
+            for(final long word : cachedBlocks) {
+                count += Long.bitCount(word);
+            }
+            valid = count;
+        }
+
+
+        /**
+         * Updates the cached validity flag of a block and the valid blocks counter.
+         * @param index The index of the block in the structure's block list.
+         * @param isValid The new validity flag.
+         */
+        public void setValid(final int index, final boolean isValid) {
+            final int word = index >>> 6;
+            final long mask = 1L << index;
+            final long old = cachedBlocks[word];
+            final long updated = isValid ? (old | mask) : (old & ~mask);
+            if(updated != old) {
+                cachedBlocks[word] = updated;
+                valid += isValid ? 1 : -1;
+            }
+        }
+    }
+
+
+
+
+    private final ServerLevel level;
+
+
+    // The lookup tables, which associate each controller with the blocks that make up its multiblock structure
+    // and each block that could be part of one or more structures with their controllers.
+    private final DimensionIndex index = new DimensionIndex();
+
+
+    // The handles of the controllers waiting for each chunk to be loaded, indexed by packed chunk position
+    private final Long2ObjectOpenHashMap<IntArrayList> pendingChunks = new Long2ObjectOpenHashMap<>();
+
+
+    // The tombstones of evicted controllers. Kept in memory only until the saved ones are loaded with the level
+    private TombstoneData tombstones = new TombstoneData();
+
+    // Whether a block change can affect anything, i.e. controllers are registered or tombstones are watching their bounding box.
+    // Block changes read it before anything else, from any thread, so changes in levels without structures cost a single branch
+    private volatile boolean watching = false;
+
+    // The controllers whose valid blocks count changed since their state was last published
+    private final ReferenceOpenHashSet<ControllerData> touchedControllers = new ReferenceOpenHashSet<>();
+
+
+    // Changed blocks whose chunk was unloaded before they could be revalidated, indexed by packed chunk position
+    private final Long2ObjectOpenHashMap<LongArrayList> pendingBlocks = new Long2ObjectOpenHashMap<>();
+
+
+    // A reference-counted set of all the blocks required by the structures of registered and evicted controllers.
+    // Changes between two blocks that no structure requires can't affect validation or saved flags and are skipped without any lookup.
+    private final Reference2IntOpenHashMap<Block> palette = new Reference2IntOpenHashMap<>();
+    private long paletteSkippedChanges = 0;
+    private long paletteCheckedChanges = 0;
+
+
+    // Block changes reported by threads other than the server thread, waiting to be applied by the server thread.
+    // Both lists are guarded by offThreadLock. The volatile flag lets the server thread skip the lock when there's nothing to drain
+    private final Object offThreadLock = new Object();
+    private final LongArrayList offThreadBlockChanges = new LongArrayList();
+    private final LongArrayList offThreadControllerChanges = new LongArrayList();
+    private volatile boolean hasOffThreadChanges = false;
+
+
+
+
+    private IncrementalStructureValidator(final @NotNull ServerLevel level) {
+        this.level = level;
     }
 
 
+    /**
+     * Returns the validator of a level, creating it if needed.
+     * <p>
+     * This is safe to call from any thread.
+     * @param level The level.
+     * @return The validator.
+     */
+    public static @NotNull IncrementalStructureValidator get(final @NotNull ServerLevel level) {
+        return validators.computeIfAbsent(level, IncrementalStructureValidator::new);
+    }
 
 
-    // A map that associates each controller with the blocks that make up its multiblock structure.
-    // The controller is identified by its level and coordinates.
-    // The blocks are a static list whose elements are sorted by x, y, and z local coordinates relative to the controller to allow for O(1) access.
-    // Each block also stores its state (valud/not valid).
-    private static final Map<BlockKey, ControllerData> controllers = new HashMap<>();
+    /**
+     * Returns the validator of a level if it exists.
+     * <p>
+     * This is safe to call from any thread.
+     * @param level The level.
+     * @return The validator, or null if the level doesn't have one.
+     */
+    public static @Nullable IncrementalStructureValidator getIfPresent(final @NotNull ServerLevel level) {
+        return validators.get(level);
+    }
+
 
+    /**
+     * Discards the validator of a level. This should be called when the level is unloaded.
+     * @param level The level.
+     */
+    public static void remove(final @NotNull ServerLevel level) {
+        validators.remove(level);
+    }
 
-    // A map that associates each block that could be part of one or more structures to their controllers.
-    // The block and its controllers are both identified by their level and coordinates.
-    private static final Map<BlockKey, List<BlockKey>> blocks = new HashMap<>();
 
 
 
@@ -103,12 +352,11 @@ public class IncrementalStructureValidator {
      * NOTICE: DO NOT CALL THIS WHILE THE CHUNK IS LOADING. That would cause Minecraft to hang. Use lazy registration instead.
      * <p>
      * Registering a controller that's already registered will replace the old data (and update the references).
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread.
      * @param pos The position of the controller to register.
      */
-    public static void registerController(final @NotNull Level level, final @NotNull BlockPos pos) {
-        if(level.isClientSide()) return;
-
+    public void registerController(final @NotNull BlockPos pos) {
 
         // Find structure instance. Return if it can't be found
         final BlockEntity be = level.getBlockEntity(pos);
@@ -120,57 +368,249 @@ public class IncrementalStructureValidator {
         structure.ensureInitialized();
 
 
-        // Create or replace the list of associated blocks
-        final BlockKey controllerKey = new BlockKey(level.dimension(), pos);
-        final var controllerData = controllers.compute(controllerKey, (k, v) -> {
+        // Remove old block-controllers references if present
+        final ControllerData oldData = index.getController(pos.asLong());
+        if(oldData != null) {
+            untrackController(oldData);
+        }
+
+
+        // Create new ControllerData. All blocks start as invalid and are marked while checking each block
+        final ControllerData controllerData = new ControllerData(
+            pos.immutable(),
+            cbe,
+            cbe.getStructureId(),
+            structure.getTrackedCount(),
+            Structure.getControllerFacing(level.getBlockState(pos)),
+            structure
+        );
+        index.addController(controllerData);
+        watching = true;
+        addToPalette(structure);
+        final boolean perBlock = controllerData.trackingMode == TrackingMode.PER_BLOCK;
+        if(!perBlock) {
+            index.addBox(controllerData);
+        }
+
+
+        // Restore the flags saved when the controller was evicted if none of its blocks could have changed since then.
+        // The tombstone is consumed either way, as the live data takes over from here
+        final ValiditySnapshot snapshot = cbe.getValiditySnapshot();
+        cbe.setValiditySnapshot(null);
+        final Tombstone tombstone = removeTombstone(pos.asLong());
+        final boolean trusted = tombstone != null && snapshot != null && snapshot.getStamp() == tombstone.stamp && snapshot.matches(structure, controllerData.direction);
+        cbe.setRestoredFromSnapshot(trusted);
+        if(trusted) {
+            controllerData.restoreFlags(snapshot.getFlags());
+        }
+
+
+        // Sparse structures only visit their tracked entries, so their cost scales with the number of constrained blocks
+        if(structure.isSparse()) {
+            scanSparse(controllerData, null, !trusted, perBlock);
+            refreshState(controllerData);
+            return;
+        }
+
+
+        // Validate the structure one chunk at a time. Chunks that are not loaded are never loaded here.
+        // They are marked as pending and validated when they are loaded
+        for(int cx = controllerData.minX >> 4; cx <= controllerData.maxX >> 4; ++cx) {
+            for(int cz = controllerData.minZ >> 4; cz <= controllerData.maxZ >> 4; ++cz) {
+                if(trusted) {
+                    scanChunk(controllerData, null, cx, cz, perBlock);
+                    continue;
+                }
+                final LevelChunk chunk = level.getChunkSource().getChunkNow(cx, cz);
+                if(chunk == null) {
+                    pendingChunks.computeIfAbsent(ChunkPos.asLong(cx, cz), k -> new IntArrayList()).add(controllerData.handle);
+                    ++controllerData.unloadedChunks;
+                }
+                scanChunk(controllerData, chunk, cx, cz, perBlock);
+            }
+        }
+        refreshState(controllerData);
+    }
+
+
+
+
+
+
 
-            // Remove old block-controllers references if present
-            if(v != null) {
-                for(int i = 0; i < v.cachedBlocks.size(); ++i) {
-                    final var blockCoords = Utils.localToGlobal(structure.blockIndexToOffset(i), pos, v.direction);
-                    final BlockKey blockKey = new BlockKey(level.dimension(), blockCoords);
-                    final var blockControllers = blocks.get(blockKey);
-                    if(blockControllers != null) {
-                        blockControllers.remove(k);
+
+    /**
+     * Validates the blocks of a controller that are inside of a chunk, and optionally registers them in the block lookup map.
+     * <p>
+     * This walks the chunk sections that intersect the structure's bounding box and reads block states directly from each section,
+     * which avoids the per-block chunk lookups and position allocations of {@link ServerLevel#getBlockState(BlockPos)}.
+     * Its results are identical: positions outside of the build height read as void air and empty sections read as air.
+     * @param controllerData The data of the controller.
+     * @param chunk The chunk, or null if it's not loaded. Blocks in chunks that are not loaded are not validated.
+     * @param cx The x coordinate of the chunk.
+     * @param cz The z coordinate of the chunk.
+     * @param register Whether the blocks should be added to the block lookup map.
+     */
+    private void scanChunk(final @NotNull ControllerData controllerData, final @Nullable LevelChunk chunk, final int cx, final int cz, final boolean register) {
+        if(chunk == null && !register) return;
+        final Structure structure = controllerData.structure;
+        final Direction direction = controllerData.direction;
+        final BlockPos origin = controllerData.pos;
+        final OffsetTable table = structure.getOffsetTable(direction);
+        final int xStep = table.getXStep();
+
+
+        // For each chunk section in the bounding box
+        final BlockState voidAir = Blocks.VOID_AIR.defaultBlockState();
+        final BlockState air = Blocks.AIR.defaultBlockState();
+        final LevelChunkSection[] sections = chunk == null ? null : chunk.getSections();
+        for(int sy = controllerData.minY >> 4; sy <= controllerData.maxY >> 4; ++sy) {
+            final int sectionIndex = level.getSectionIndexFromSectionY(sy);
+            final LevelChunkSection section = sections != null && sectionIndex >= 0 && sectionIndex < sections.length ? sections[sectionIndex] : null;
+
+            // Use a single state for sections that have no palette to read from
+            final BlockState uniformState = section == null ? voidAir : section.hasOnlyAir() ? air : null;
+
+
+            // Clip the bounding box to the section and validate each block in it.
+            // Sections store their blocks in yzx order, so x is the innermost loop
+            final int x0 = Math.max(controllerData.minX, cx << 4), x1 = Math.min(controllerData.maxX, (cx << 4) + 15);
+            final int y0 = Math.max(controllerData.minY, sy << 4), y1 = Math.min(controllerData.maxY, (sy << 4) + 15);
+            final int z0 = Math.max(controllerData.minZ, cz << 4), z1 = Math.min(controllerData.maxZ, (cz << 4) + 15);
+            for(int y = y0; y <= y1; ++y) {
+                for(int z = z0; z <= z1; ++z) {
+                    int blockIndex = table.indexOf(x0 - origin.getX(), y - origin.getY(), z - origin.getZ());
+                    for(int x = x0; x <= x1; ++x, blockIndex += xStep) {
+                        if(chunk != null) {
+                            final BlockState state = uniformState != null ? uniformState : section.getBlockState(x & 15, y & 15, z & 15);
+                            controllerData.setValid(blockIndex, structure.validateBlock(blockIndex, state, direction));
+                        }
+                        if(register) {
+                            index.addBlock(BlockPos.asLong(x, y, z), controllerData.handle);
+                        }
                     }
-                    else Cassiopeia.LOGGER.error("Old affected blocks list references a block that doesn't exist in the block lookup map");
                 }
             }
+        }
+    }
+
+
+
+
+    /**
+     * Validates the tracked blocks of a sparse structure, and optionally registers them in the block lookup map.
+     * <p>
+     * Unlike {@link #scanChunk}, this visits the tracked entries directly instead of every position in the bounding box.
+     * When scanning the whole structure, chunks that are not loaded are marked as pending for the controller.
+     * @param controllerData The data of the controller.
+     * @param onlyChunk If not null, only the blocks inside of this chunk are visited. Otherwise, every tracked block is.
+     * @param validate Whether the blocks should be validated.
+     * @param register Whether the blocks should be added to the block lookup map.
+     */
+    private void scanSparse(final @NotNull ControllerData controllerData, final @Nullable LevelChunk onlyChunk, final boolean validate, final boolean register) {
+        final Structure structure = controllerData.structure;
+        final Direction direction = controllerData.direction;
+        final OffsetTable table = structure.getOffsetTable(direction);
+        final long origin = controllerData.pos.asLong();
+        final long onlyChunkPos = onlyChunk == null ? 0 : onlyChunk.getPos().toLong();
+
+        // Entries are visited in local xyz order, so consecutive blocks usually share their chunk
+        long lastChunkPos = 0;
+        LevelChunk chunk = null;
+        boolean hasChunk = false;
+        for(int i = 0; i < controllerData.size(); ++i) {
+            final int blockIndex = structure.toBlockIndex(i);
+            final long worldPos = table.worldPos(origin, blockIndex);
+            final int x = BlockPos.getX(worldPos);
+            final int y = BlockPos.getY(worldPos);
+            final int z = BlockPos.getZ(worldPos);
+            final long chunkPos = ChunkPos.asLong(x >> 4, z >> 4);
+            if(onlyChunk != null && chunkPos != onlyChunkPos) continue;
+
+            if(validate) {
+
+                // Find the chunk of the block, marking it as pending the first time it's found unloaded
+                if(!hasChunk || chunkPos != lastChunkPos) {
+                    chunk = onlyChunk != null ? onlyChunk : level.getChunkSource().getChunkNow(x >> 4, z >> 4);
+                    lastChunkPos = chunkPos;
+                    hasChunk = true;
+                    if(chunk == null) {
+                        final IntArrayList handles = pendingChunks.computeIfAbsent(chunkPos, k -> new IntArrayList());
+                        if(!handles.contains(controllerData.handle)) {
+                            handles.add(controllerData.handle);
+                            ++controllerData.unloadedChunks;
+                        }
+                    }
+                }
+                if(chunk != null) {
+                    controllerData.setValid(i, structure.validateBlock(blockIndex, readState(chunk, x, y, z), direction));
+                }
+            }
+            if(register) {
+                index.addBlock(worldPos, controllerData.handle);
+            }
+        }
+    }
+
+
+    /**
+     * Reads a block state straight from a chunk's sections.
+     * The result is identical to {@link ServerLevel#getBlockState(BlockPos)}.
+     * @param chunk The chunk. Must contain the position.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The block state.
+     */
+    private @NotNull BlockState readState(final @NotNull LevelChunk chunk, final int x, final int y, final int z) {
+        final LevelChunkSection[] sections = chunk.getSections();
+        final int sectionIndex = level.getSectionIndex(y);
+        if(sectionIndex < 0 || sectionIndex >= sections.length) return Blocks.VOID_AIR.defaultBlockState();
+        final LevelChunkSection section = sections[sectionIndex];
+        return section.hasOnlyAir() ? Blocks.AIR.defaultBlockState() : section.getBlockState(x & 15, y & 15, z & 15);
+    }
+
+
 
-            // Create new ControllerData
-            return new ControllerData(
-                cbe.getStructureId(),
-                new ArrayList<>(structure.getBlocks().size()),
-                Structure.getControllerFacing(level.getBlockState(pos)),
-                structure,
-                0
-                // Start valid blocks at 0. Increase the amount while checking each block
-            );
-        });
-
-
-        // For each block in the controller's structure
-        final Vector3i min = structure.getMinCorner();
-        final Vector3i max = structure.getMaxCorner();
-        for(int x = min.x; x <= max.x; ++x) {
-            for(int y = min.y; y <= max.y; ++y) {
-                for(int z = min.z; z <= max.z; ++z) {
-                    final Vector3i offset = new Vector3i(x, y, z);
-                    final BlockPos worldPos = Utils.localToGlobal(offset, pos, controllerData.direction);
-
-                    // Store the current state of the block in the controller's block list
-                    final BlockState blockState = level.getBlockState(worldPos);
-                    final boolean isValid = structure.validateBlock(offset, blockState, controllerData.direction);
-                    controllerData.cachedBlocks.add(isValid);
-                    if(isValid) ++controllerData.valid;
-
-                    // Update the block lookup map
-                    final BlockKey blockKey = new BlockKey(level.dimension(), worldPos);
-                    final List<BlockKey> affectedControllers = blocks.computeIfAbsent(blockKey, k -> new ArrayList<>());
-                    affectedControllers.add(controllerKey);
+
+    /**
+     * Validates the pending blocks of the controllers that were waiting for a chunk to be loaded,
+     * and revalidates the changed blocks that were deferred when the chunk was unloaded.
+     * <p>
+     * This must be called each time a chunk is loaded. It reads the blocks from the chunk instance,
+     * so it's safe to call while the chunk is being loaded.
+     * @param chunk The chunk.
+     */
+    public void onChunkLoad(final @NotNull LevelChunk chunk) {
+        if(pendingChunks.isEmpty() && pendingBlocks.isEmpty()) return;
+        final ChunkPos chunkPos = chunk.getPos();
+
+        // Scan the chunk for each controller that's waiting for it
+        final IntArrayList handles = pendingChunks.remove(chunkPos.toLong());
+        if(handles != null) {
+            for(int i = 0; i < handles.size(); ++i) {
+                final ControllerData controllerData = index.getController(handles.getInt(i));
+                --controllerData.unloadedChunks;
+                if(controllerData.structure.isSparse()) {
+                    scanSparse(controllerData, chunk, true, false);
+                }
+                else {
+                    scanChunk(controllerData, chunk, chunkPos.x, chunkPos.z, false);
                 }
+                touchedControllers.add(controllerData);
+            }
+        }
+
+        // Revalidate deferred block changes
+        final LongArrayList blocks = pendingBlocks.remove(chunkPos.toLong());
+        if(blocks != null) {
+            final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+            for(int i = 0; i < blocks.size(); ++i) {
+                pos.set(blocks.getLong(i));
+                revalidatePosition(pos, chunk.getBlockState(pos));
             }
         }
+        publishStateChanges();
     }
 
 
@@ -188,28 +628,290 @@ public class IncrementalStructureValidator {
      * Calling this when a controller is unloaded is not necessary.
      * <p>
      * Calling this on a controller that's not registered has no effect.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread.
      * @param pos The position of the controller to unregister.
      */
-    public static void unregisterController(final @NotNull Level level, final @NotNull BlockPos pos) {
-        if(level.isClientSide()) return;
-        final BlockKey controllerKey = new BlockKey(level.dimension(), pos);
+    public void unregisterController(final @NotNull BlockPos pos) {
 
-        // If the controller is registered
-        final ControllerData controllerData = controllers.get(controllerKey);
+        // If the controller is registered, remove it and all of its references
+        final ControllerData controllerData = index.getController(pos.asLong());
         if(controllerData != null) {
+            untrackController(controllerData);
+        }
+
+        // Its saved flags can't be trusted anymore
+        removeTombstone(pos.asLong());
+    }
+
+
+
 
-            // Remove controller from the list of controllers of each block
-            for(int i = 0; i < controllerData.cachedBlocks.size(); ++i) {
-                final var blockCoords = Utils.localToGlobal(controllerData.structure.blockIndexToOffset(i), pos, controllerData.direction);
-                final BlockKey blockKey = new BlockKey(level.dimension(), blockCoords);
-                final var block = blocks.get(blockKey);
-                if(block == null) Cassiopeia.LOGGER.error("Controller to unregister not present in one of its block's list of controllers. This should never happen");
-                else block.remove(controllerKey);
+    /**
+     * Evicts the controllers of a chunk that's being unloaded.
+     * <p>
+     * This must be called each time a chunk is unloaded, while its block entities are still present.
+     * @param chunk The chunk.
+     */
+    public void onChunkUnload(final @NotNull LevelChunk chunk) {
+        if(index.isEmpty()) return;
+        boolean evicted = false;
+        for(final BlockEntity be : chunk.getBlockEntities().values()) {
+            if(be instanceof final AbstractControllerBlockEntity cbe) {
+                evicted |= evictController(cbe);
             }
+        }
 
-            // Remove controller from constrollers list
-            controllers.remove(controllerKey);
+        //! The chunk is saved after this event, but only if it's marked as unsaved. Without this, the new snapshots would be lost
+        if(evicted) {
+            chunk.markUnsaved();
+        }
+    }
+
+
+    /**
+     * Removes a controller from the lookup tables, saving its validity flags in its block entity.
+     * <p>
+     * If the flags are complete, a tombstone keeps watching the structure's bounding box,
+     * so they can be restored when the controller is loaded again instead of rescanning the structure.
+     * <p>
+     * Queued changes are not flushed, as that would publish state changes and wake machines in the middle of the unload.
+     * Controllers with queued changes in their bounding box are evicted without a snapshot instead.
+     * @param cbe The block entity of the controller.
+     * @return True if the controller was registered, false otherwise.
+     */
+    private boolean evictController(final @NotNull AbstractControllerBlockEntity cbe) {
+        final ControllerData controllerData = index.getController(cbe.getBlockPos().asLong());
+        if(controllerData == null) return false;
+
+        final ValiditySnapshot snapshot = createSnapshot(controllerData);
+        cbe.setValiditySnapshot(snapshot);
+        untrackController(controllerData);
+        if(snapshot != null) {
+            addTombstone(new Tombstone(controllerData, snapshot.getStamp()));
+        }
+        return true;
+    }
+
+
+    /**
+     * Saves a snapshot and a tombstone for each registered controller, then marks the tombstones as clean.
+     * <p>
+     * Without this, the controllers that are loaded when the server stops would be rescanned after it starts again,
+     * as only evicted controllers have a tombstone.
+     * The controllers stay registered, and their tombstones are discarded as usual if a block changes before the levels are saved.
+     */
+    private void seal() {
+        for(final ControllerData controllerData : index.getControllers()) {
+            final ValiditySnapshot snapshot = createSnapshot(controllerData);
+            if(snapshot != null) {
+                controllerData.blockEntity.setValiditySnapshot(snapshot);
+                addTombstone(new Tombstone(controllerData, snapshot.getStamp()));
+                level.getChunkAt(controllerData.pos).markUnsaved();
+            }
+        }
+        tombstones.setClean(true);
+    }
+
+
+    /**
+     * Seals the validators of every level. See {@link #seal()}.
+     * <p>
+     * This must be called when the server starts stopping, before the levels are saved.
+     */
+    public static void sealAll() {
+        for(final IncrementalStructureValidator validator : validators.values()) {
+            validator.seal();
+        }
+    }
+
+
+    /**
+     * Loads the tombstones saved with the level.
+     * <p>
+     * Tombstones saved by a server that didn't stop cleanly are discarded, as block changes in their bounding box could have been saved without them.
+     * The data is then marked as unclean and saved right away, so a crash at any later point discards them too.
+     * Tombstones whose structure doesn't exist anymore are discarded.
+     * <p>
+     * This must be called once when the level is loaded, from the server thread.
+     */
+    public void loadTombstones() {
+        final DimensionDataStorage storage = level.getDataStorage();
+        final TombstoneData data = storage.computeIfAbsent(TombstoneData.TYPE);
+        for(final Tombstone tombstone : data.getAll()) {
+            final Optional<Structure> structure = data.isClean() ? StructureManager.getStructure(tombstone.structureId) : Optional.empty();
+            if(structure.isPresent()) {
+                structure.get().ensureInitialized();
+                tombstone.structure = structure.get();
+                addToPalette(tombstone.structure);
+            }
+            else {
+                data.remove(tombstone.pos);
+            }
+        }
+
+        tombstones = data;
+        tombstones.setClean(false);
+        storage.saveAndJoin();
+        updateWatching();
+    }
+
+
+    /**
+     * Creates a snapshot of the validity flags of a controller.
+     * @param controllerData The data of the controller.
+     * @return The snapshot, or null if some of its blocks were never scanned or have deferred or queued changes.
+     */
+    private @Nullable ValiditySnapshot createSnapshot(final @NotNull ControllerData controllerData) {
+        if(controllerData.unloadedChunks > 0) return null;
+        if(hasQueuedChanges(controllerData)) return null;
+        if(!pendingBlocks.isEmpty()) {
+            for(int cx = controllerData.minX >> 4; cx <= controllerData.maxX >> 4; ++cx) {
+                for(int cz = controllerData.minZ >> 4; cz <= controllerData.maxZ >> 4; ++cz) {
+                    if(pendingBlocks.containsKey(ChunkPos.asLong(cx, cz))) return null;
+                }
+            }
+        }
+
+        return new ValiditySnapshot(controllerData.structure.getContentHash(), controllerData.direction, controllerData.size(), controllerData.copyFlags(), tombstones.nextStamp());
+    }
+
+
+
+
+    /**
+     * Checks if any block in the bounding box of a controller changed since the last flush.
+     * The flags of these blocks are out of date until the next flush.
+     * @param controllerData The data of the controller.
+     * @return True if at least one block in the bounding box is waiting to be revalidated, false otherwise.
+     */
+    private boolean hasQueuedChanges(final @NotNull ControllerData controllerData) {
+        if(index.hasDirtyBlocks() && containsAny(controllerData, index.getDirtyBlocks().iterator())) return true;
+        if(hasOffThreadChanges) {
+            synchronized(offThreadLock) {
+                return containsAny(controllerData, offThreadBlockChanges.iterator()) || containsAny(controllerData, offThreadControllerChanges.iterator());
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean containsAny(final @NotNull ControllerData controllerData, final @NotNull LongIterator positions) {
+        while(positions.hasNext()) {
+            final long pos = positions.nextLong();
+            if(controllerData.boxContains(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos))) return true;
+        }
+        return false;
+    }
+
+
+
+
+    /**
+     * Adds the tombstone of an evicted controller, replacing its old one.
+     * The oldest tombstones are dropped when the level has more than the configured maximum.
+     * @param tombstone The tombstone.
+     */
+    private void addTombstone(final @NotNull Tombstone tombstone) {
+        removeTombstone(tombstone.pos);
+        tombstones.add(tombstone);
+        addToPalette(tombstone.structure);
+        watching = true;
+
+        final int max = CassiopeiaConfig.get().getMaxTombstonesPerLevel();
+        while(tombstones.size() > max) {
+            removeTombstone(tombstones.getOldest());
+        }
+    }
+
+
+    /**
+     * Removes the tombstone of a controller.
+     * @param pos The position of the controller.
+     * @return The removed tombstone, or null if the controller had none.
+     */
+    private @Nullable Tombstone removeTombstone(final long pos) {
+        if(tombstones.isEmpty()) return null;
+        final Tombstone tombstone = tombstones.remove(pos);
+        if(tombstone == null) return null;
+        removeFromPalette(tombstone.structure);
+        updateWatching();
+        return tombstone;
+    }
+
+
+    private void updateWatching() {
+        watching = !index.isEmpty() || !tombstones.isEmpty();
+    }
+
+
+    /**
+     * Removes the tombstones whose bounding box contains a changed block.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     */
+    private void invalidateTombstones(final int x, final int y, final int z) {
+        if(tombstones.isEmpty()) return;
+        final List<Tombstone> candidates = tombstones.getChunk(ChunkPos.asLong(x >> 4, z >> 4));
+        if(candidates == null) return;
+
+        //! Iterate backwards as removeTombstone removes the matching tombstone from this list
+        for(int i = candidates.size() - 1; i >= 0; --i) {
+            final Tombstone tombstone = candidates.get(i);
+            if(tombstone.contains(x, y, z)) {
+                removeTombstone(tombstone.pos);
+            }
+        }
+    }
+
+
+    /**
+     * Removes a controller from the lookup tables, along with the references of each of its blocks.
+     * @param controllerData The data of the controller.
+     */
+    private void untrackController(final @NotNull ControllerData controllerData) {
+        if(controllerData.unloadedChunks > 0) {
+            for(int cx = controllerData.minX >> 4; cx <= controllerData.maxX >> 4; ++cx) {
+                for(int cz = controllerData.minZ >> 4; cz <= controllerData.maxZ >> 4; ++cz) {
+                    final long chunkPos = ChunkPos.asLong(cx, cz);
+                    final IntArrayList handles = pendingChunks.get(chunkPos);
+                    if(handles != null && handles.rem(controllerData.handle) && handles.isEmpty()) {
+                        pendingChunks.remove(chunkPos);
+                    }
+                }
+            }
+        }
+        if(controllerData.trackingMode == TrackingMode.BOUNDING_BOX) {
+            index.removeBox(controllerData);
+        }
+        else {
+            final OffsetTable table = controllerData.structure.getOffsetTable(controllerData.direction);
+            final long origin = controllerData.pos.asLong();
+            for(int i = 0; i < controllerData.size(); ++i) {
+                index.removeBlock(table.worldPos(origin, controllerData.structure.toBlockIndex(i)), controllerData.handle);
+            }
+        }
+        index.removeController(controllerData);
+        updateWatching();
+        touchedControllers.remove(controllerData);
+        setState(controllerData, StructureState.UNREGISTERED);
+        removeFromPalette(controllerData.structure);
+    }
+
+
+    private void addToPalette(final @NotNull Structure structure) {
+        for(final Block block : structure.getPalette()) {
+            palette.addTo(block, 1);
+        }
+    }
+
+
+    private void removeFromPalette(final @NotNull Structure structure) {
+        for(final Block block : structure.getPalette()) {
+            if(palette.addTo(block, -1) <= 1) {
+                palette.removeInt(block);
+            }
         }
     }
 
@@ -222,16 +924,63 @@ public class IncrementalStructureValidator {
 
     /**
      * Checks if a controller is currently registered.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread.
      * @param pos The position of the controller to check.
      * @return True if the specified controller is registered, false otherwise.
      */
-    public static boolean isRegistered(final @NotNull Level level, final @NotNull BlockPos pos) { //TODO replace level and pos parameters with BlockKey, other places too
-        if(level.isClientSide()) return false;
+    public boolean isRegistered(final @NotNull BlockPos pos) {
+        return index.getController(pos.asLong()) != null;
+    }
+
+
+
+
 
-        // Compute key and check if it exists
-        final BlockKey controllerKey = new BlockKey(level.dimension(), pos);
-        return controllers.containsKey(controllerKey);
+
+
+
+    /**
+     * Returns the number of block changes skipped by the palette filter since the level was loaded.
+     */
+    public long getPaletteSkippedChanges() {
+        return paletteSkippedChanges;
+    }
+
+
+    /**
+     * Returns the number of block changes that passed the palette filter since the level was loaded.
+     */
+    public long getPaletteCheckedChanges() {
+        return paletteCheckedChanges;
+    }
+
+
+    /**
+     * Returns the number of registered controllers.
+     */
+    public int getControllerCount() {
+        return index.getControllerCount();
+    }
+
+
+    /**
+     * Returns the heap used by the validity flags of the registered controllers, in bytes.
+     */
+    public long getFlagBytes() {
+        long bytes = 0;
+        for(final ControllerData controllerData : index.getControllers()) {
+            bytes += controllerData.getFlagBytes();
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the number of distinct blocks required by the structures of registered and evicted controllers.
+     */
+    public int getPaletteSize() {
+        return palette.size();
     }
 
 
@@ -241,66 +990,254 @@ public class IncrementalStructureValidator {
 
 
 
-    public enum BlockChangeAction { PLACE, BREAK }
     /**
      * Callback method for block changes. It keeps track of matching blocks in active structures.
      * <p>
-     * This should be called each time a block is changed anywhere in the server for any reason.
-     * @param level The level the changed block is in.
+     * This should be called each time a block is changed anywhere in the level for any reason. It's safe to call from any thread.
+     * <p>
+     * On the server thread, controllers are registered and unregistered immediately.
+     * Other blocks are filtered and queued, then revalidated by {@link #flushChanges()}.
+     * Changes reported by other threads are handed off to the server thread and applied during the next flush.
      * @param pos The position of the changed block.
      * @param oldState The block state of the previous block.
      * @param newState The block state of the current block.
-     * @param action The action. This should be PLACE when a non-air block replaces air, BREAK when air replaces non-air.
-     *     Replacing a non-air block with another non-air block should be treated as a BREAK and then a PLACE.
-     *     In this case, this method should be called twice in order to correctly track changes.
      */
-    public static void onBlockChange(
-        final @NotNull Level level, final @NotNull BlockPos pos,
-        final @NotNull BlockState oldState, final @NotNull BlockState newState,
-        final @NotNull BlockChangeAction action
-    ) {
-        if(level.isClientSide()) return;
+    public void onBlockChange(final @NotNull BlockPos pos, final @NotNull BlockState oldState, final @NotNull BlockState newState) {
+        //TODO this might need to check a controller tag or something, if we add more controller types in the future. "basic controller" suggests non basic types will be a thing
+        final boolean isControllerChange = oldState.is(ModBlocks.BASIC_CONTROLLER) || newState.is(ModBlocks.BASIC_CONTROLLER);
 
+        // Skip everything else if there's nothing to update. This is the common case in levels without structures
+        if(!isControllerChange && !watching) return;
+
+
+        // Hand off changes from other threads. The lookup tables are not thread-safe, so they can't even be used for filtering here
+        if(!level.getServer().isSameThread()) {
+            synchronized(offThreadLock) {
+                (isControllerChange ? offThreadControllerChanges : offThreadBlockChanges).add(pos.asLong());
+                hasOffThreadChanges = true;
+            }
+            return;
+        }
+
+
+        // If the modified block is a controller, register/unregister it based on the new state
+        if(isControllerChange) {
+            invalidateTombstones(pos.getX(), pos.getY(), pos.getZ());
+            onControllerChange(pos, newState);
+            return;
+        }
+
+
+        // Skip changes between blocks that no structure requires
+        if(!isPaletteChange(oldState, newState)) return;
+
+        // If the modified block is not a controller, queue it for revalidation at the end of the tick.
+        // Blocks that change multiple times in the same tick are only revalidated once, against their final state
+        if(!index.isEmpty() && index.isTracked(pos.getX(), pos.getY(), pos.getZ())) {
+            index.markDirty(pos.asLong());
+        }
+
+        // Any change in the bounding box of an evicted controller makes its saved flags stale
+        invalidateTombstones(pos.getX(), pos.getY(), pos.getZ());
+    }
 
-        // If the modified block is a controller, register/unregister it based on the action
-        //TODO this might need to check a controller tag or something, if we add more controller types in the future. "basic controller" suggests non basic types will be a thing
-        if     (action == BlockChangeAction.PLACE && newState.is(ModBlocks.BASIC_CONTROLLER))   registerController(level, pos);
-        else if(action == BlockChangeAction.BREAK && oldState.is(ModBlocks.BASIC_CONTROLLER)) unregisterController(level, pos);
 
+    /**
+     * Registers or unregisters a controller after its block changed.
+     * Replacing a controller with another (e.g. rotating it) re-registers it.
+     * @param pos The position of the controller.
+     * @param newState The current state of the block.
+     */
+    private void onControllerChange(final @NotNull BlockPos pos, final @NotNull BlockState newState) {
+        if(newState.is(ModBlocks.BASIC_CONTROLLER)) registerController(pos);
+        else unregisterController(pos);
+    }
+
+
+    /**
+     * Checks if a block change involves a block required by the structure of a registered or evicted controller.
+     * <p>
+     * Other changes can't change any validation flag: constrained entries were and stay invalid,
+     * and entries that allow any block are valid regardless of the block, so they never need to be revalidated.
+     * This costs two palette lookups, so most of the block changes in a level are rejected without any position lookup.
+     * @param oldState The block state of the previous block.
+     * @param newState The block state of the current block.
+     * @return True if the change could affect a structure, false otherwise.
+     */
+    private boolean isPaletteChange(final @NotNull BlockState oldState, final @NotNull BlockState newState) {
+        if(!palette.containsKey(oldState.getBlock()) && !palette.containsKey(newState.getBlock())) {
+            ++paletteSkippedChanges;
+            return false;
+        }
+        ++paletteCheckedChanges;
+        return true;
+    }
+
+
+
+
+    /**
+     * Applies the changes handed off by other threads.
+     * Their previous states are unknown, so block changes skip the palette filter.
+     */
+    private void drainOffThreadChanges() {
+        final long[] blockChanges;
+        final long[] controllerChanges;
+        synchronized(offThreadLock) {
+            blockChanges = offThreadBlockChanges.toLongArray();
+            controllerChanges = offThreadControllerChanges.toLongArray();
+            offThreadBlockChanges.clear();
+            offThreadControllerChanges.clear();
+            hasOffThreadChanges = false;
+        }
+
+        final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        for(final long controllerPos : controllerChanges) {
+            pos.set(controllerPos);
+            invalidateTombstones(pos.getX(), pos.getY(), pos.getZ());
+            onControllerChange(pos, level.getBlockState(pos));
+        }
+        for(final long blockPos : blockChanges) {
+            pos.set(blockPos);
+            invalidateTombstones(pos.getX(), pos.getY(), pos.getZ());
+            if(index.isTracked(pos.getX(), pos.getY(), pos.getZ())) {
+                index.markDirty(blockPos);
+            }
+        }
+    }
 
 
 
-        // If the modified block is not a controller
+
+    /**
+     * Revalidates all the blocks changed since the last flush, using their current state.
+     * <p>
+     * This is called at the end of each tick, and on demand before reading validation data mid-tick.
+     * It must only be called from the server thread.
+     */
+    public void flushChanges() {
+        if(hasOffThreadChanges) {
+            drainOffThreadChanges();
+        }
+        if(!index.hasDirtyBlocks()) return;
+
+        final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        final LongIterator it = index.getDirtyBlocks().iterator();
+        while(it.hasNext()) {
+            pos.set(it.nextLong());
+
+            // If the chunk was unloaded after the change, defer the block until it's loaded again instead of loading it synchronously
+            if(level.hasChunkAt(pos)) {
+                revalidatePosition(pos, level.getBlockState(pos));
+            }
+            else {
+                pendingBlocks.computeIfAbsent(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4), k -> new LongArrayList()).add(pos.asLong());
+            }
+        }
+        index.clearDirtyBlocks();
+        publishStateChanges();
+    }
+
+
+    /**
+     * Publishes the state changes of the controllers whose valid blocks count changed.
+     */
+    private void publishStateChanges() {
+        if(touchedControllers.isEmpty()) return;
+        for(final ControllerData controllerData : touchedControllers) {
+            refreshState(controllerData);
+        }
+        touchedControllers.clear();
+    }
+
+
+    /**
+     * Computes the state of a controller's structure and fires {@link StructureEvents#STATE_CHANGED} if it changed.
+     * @param controllerData The data of the controller.
+     */
+    private void refreshState(final @NotNull ControllerData controllerData) {
+        final StructureState state;
+        if(controllerData.valid >= controllerData.size()) {
+            state = StructureState.FORMED;
+        }
+        else if(controllerData.unloadedChunks > 0 && !hasLoadedInvalidBlocks(controllerData)) {
+            state = StructureState.PARTIALLY_UNLOADED;
+        }
         else {
+            state = StructureState.BROKEN;
+        }
+        setState(controllerData, state);
+    }
 
-            // If the block is part of a possible structure
-            final BlockKey blockKey = new BlockKey(level.dimension(), pos);
-            final var controllerKeys = blocks.get(blockKey);
-            if(controllerKeys != null) {
-
-                // For each controller of the structures the block is part of
-                for(final var controllerKey : controllerKeys) {
-
-                    // Get the controller's data
-                    final var controllerData = controllers.get(controllerKey);
-                    if(controllerData != null) {
-
-                        // Find structure instance, then update the block validation flag and valid blocks count
-                        final Vector3i offset = Utils.globalToLocal(pos, controllerKey.pos, controllerData.direction);
-                        final int index = controllerData.structure.blockOffsetToIndex(offset);
-                        final var blockData = controllerData.cachedBlocks;
-                        if(blockData.get(index).booleanValue()) --controllerData.valid;
-                        final boolean isValid = controllerData.structure.validateBlock(offset, level.getBlockState(pos), controllerData.direction);
-                        blockData.set(index, isValid);
-                        if(isValid) ++controllerData.valid;
-                    }
-                    else throw new RuntimeException("A controller referenced by a tracked block is not present in the controllers map");
+
+    private void setState(final @NotNull ControllerData controllerData, final @NotNull StructureState state) {
+        if(controllerData.state != state) {
+            controllerData.state = state;
+            StructureEvents.STATE_CHANGED.invoker().onStateChanged(level, controllerData.blockEntity, state);
+        }
+    }
+
+
+    /**
+     * Revalidates a block for each controller whose structure it could be part of.
+     * @param pos The position of the block.
+     * @param state The current state of the block.
+     */
+    private void revalidatePosition(final @NotNull BlockPos pos, final @NotNull BlockState state) {
+
+        // Update each per-block controller of the structures the block is part of
+        final int ref = index.getBlockRef(pos.asLong());
+        if(ref != DimensionIndex.NO_HANDLE) {
+            if(DimensionIndex.isShared(ref)) {
+                final IntArrayList handles = index.getSharedHandles(ref);
+                for(int i = 0; i < handles.size(); ++i) {
+                    revalidateBlock(index.getController(handles.getInt(i)), pos, state);
+                }
+            }
+            else {
+                revalidateBlock(index.getController(ref), pos, state);
+            }
+        }
+
+        // Update each bounding box controller whose box contains the block
+        final IntArrayList candidates = index.getBoxCandidates(pos.getX(), pos.getY(), pos.getZ());
+        if(candidates != null) {
+            for(int i = 0; i < candidates.size(); ++i) {
+                final ControllerData controllerData = index.getController(candidates.getInt(i));
+                if(controllerData.boxContains(pos.getX(), pos.getY(), pos.getZ())) {
+                    revalidateBlock(controllerData, pos, state);
                 }
             }
         }
     }
 
 
+    /**
+     * Updates the validation flag of a block and the valid blocks count of a controller.
+     * @param controllerData The data of the controller.
+     * @param pos The position of the block.
+     * @param state The current state of the block.
+     */
+    private void revalidateBlock(final @NotNull ControllerData controllerData, final @NotNull BlockPos pos, final @NotNull BlockState state) {
+        final Structure structure = controllerData.structure;
+        final int blockIndex = structure.getOffsetTable(controllerData.direction).indexOf(
+            pos.getX() - controllerData.pos.getX(),
+            pos.getY() - controllerData.pos.getY(),
+            pos.getZ() - controllerData.pos.getZ()
+        );
+
+        // Untracked entries of sparse structures allow any block, so they never need to be revalidated
+        final int trackedIndex = structure.toTrackedIndex(blockIndex);
+        if(trackedIndex != -1) {
+            final int oldValid = controllerData.valid;
+            controllerData.setValid(trackedIndex, structure.validateBlock(blockIndex, state, controllerData.direction));
+            if(controllerData.valid != oldValid) {
+                touchedControllers.add(controllerData);
+            }
+        }
+    }
+
+
 
 
 
@@ -313,13 +1250,13 @@ public class IncrementalStructureValidator {
      * This uses cached data for O(1) validation time.
      * <p>
      * The cache is updated when relevant events are detected.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread. It never takes a lock unless other threads reported changes.
      * @param pos The position of the controller.
-     * @param blockEntity The block entity instance. This is found automatically if omitted.
      * @return True if the structure is valid, false otherwise
      */
-    public static boolean validateStructure(final @NotNull Level level, final @NotNull BlockPos pos) {
-        return validateStructure(level, pos, level.getBlockEntity(pos));
+    public boolean validateStructure(final @NotNull BlockPos pos) {
+        return getValidationState(pos, level.getBlockEntity(pos)) == ValidationState.VALID;
     }
 
 
@@ -329,23 +1266,64 @@ public class IncrementalStructureValidator {
      * This uses cached data for O(1) validation time.
      * <p>
      * The cache is updated when relevant events are detected.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread. It never takes a lock unless other threads reported changes.
      * @param pos The position of the controller.
+     * @param blockEntity The block entity instance. This is found automatically if omitted.
      * @return True if the structure is valid, false otherwise
      */
-    public static boolean validateStructure(final @NotNull Level level, final @NotNull BlockPos pos, final BlockEntity blockEntity) {
-        if(level.isClientSide()) return false;
+    public boolean validateStructure(final @NotNull BlockPos pos, final BlockEntity blockEntity) {
+        return getValidationState(pos, blockEntity) == ValidationState.VALID;
+    }
+
+
+    /**
+     * Returns the validation state of a structure.
+     * <p>
+     * This uses cached data for O(1) validation time. Structures that are partially in chunks that were never loaded
+     * since the controller was registered are reported as {@link ValidationState#NOT_LOADED} unless a loaded block doesn't match.
+     * <p>
+     * This must only be called from the server thread. It never takes a lock unless other threads reported changes.
+     * @param pos The position of the controller.
+     * @param blockEntity The block entity instance.
+     * @return The validation state of the structure.
+     */
+    public @NotNull ValidationState getValidationState(final @NotNull BlockPos pos, final BlockEntity blockEntity) {
 
         // Lazy controller registration
-        if(!(blockEntity instanceof final AbstractControllerBlockEntity cbe)) return false; //TODO this might need to be an exception/error log
+        if(!(blockEntity instanceof final AbstractControllerBlockEntity cbe)) return ValidationState.INVALID; //TODO this might need to be an exception/error log
         cbe.ensureRegistered();
+        flushChanges();
 
         // Get controller data
-        final BlockKey controllerKey = new BlockKey(level.dimension(), pos);
-        final ControllerData controllerData = controllers.get(controllerKey);
+        final ControllerData controllerData = index.getController(pos.asLong());
+        if(controllerData == null) return ValidationState.INVALID;
+
+        // Read the published state. It's up to date after the flush
+        return switch(controllerData.state) {
+            case FORMED -> ValidationState.VALID;
+            case PARTIALLY_UNLOADED -> ValidationState.NOT_LOADED;
+            default -> ValidationState.INVALID;
+        };
+    }
+
 
-        // Compare the number of valid blocks
-        return controllerData != null && controllerData.valid >= controllerData.structure.getBlocks().size();
+    /**
+     * Checks if a structure has invalid blocks outside of the chunks it's waiting for.
+     * @param controllerData The data of the controller.
+     * @return True if at least one scanned block is invalid, false otherwise.
+     */
+    private boolean hasLoadedInvalidBlocks(final @NotNull ControllerData controllerData) {
+        final OffsetTable table = controllerData.structure.getOffsetTable(controllerData.direction);
+        final long origin = controllerData.pos.asLong();
+        for(int i = controllerData.nextInvalid(0); i != -1; i = controllerData.nextInvalid(i + 1)) {
+            final long worldPos = table.worldPos(origin, controllerData.structure.toBlockIndex(i));
+            final IntArrayList handles = pendingChunks.get(ChunkPos.asLong(BlockPos.getX(worldPos) >> 4, BlockPos.getZ(worldPos) >> 4));
+            if(handles == null || !handles.contains(controllerData.handle)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -359,12 +1337,13 @@ public class IncrementalStructureValidator {
      * Identifies missing blocks in the structure relative to the controller's position.
      * <p>
      * Calling this on a single-block structure will always return an empty list.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread.
      * @param pos The position of the controller.
      * @return A List of {@link StructureError} objects, one for each incorrect block.
      */
-    public static List<StructureError> computeValidationErrors(final @NotNull Level level, final @NotNull BlockPos pos) {
-        return computeValidationErrors(level, pos, level.getBlockEntity(pos));
+    public List<StructureError> computeValidationErrors(final @NotNull BlockPos pos) {
+        return computeValidationErrors(pos, level.getBlockEntity(pos));
     }
 
 
@@ -372,42 +1351,54 @@ public class IncrementalStructureValidator {
      * Identifies missing blocks in the structure relative to the controller's position.
      * <p>
      * Calling this on a single-block structure will always return an empty list.
-     * @param level The level the controller is in.
+     * <p>
+     * This must only be called from the server thread.
      * @param pos The position of the controller.
      * @param blockEntity The block entity instance. This is found automatically if omitted.
      * @return A List of {@link StructureError} objects, one for each incorrect block.
      */
-    public static List<StructureError> computeValidationErrors(final @NotNull Level level, final @NotNull BlockPos pos, final BlockEntity blockEntity) {
+    public List<StructureError> computeValidationErrors(final @NotNull BlockPos pos, final BlockEntity blockEntity) {
         final List<StructureError> errors = new ArrayList<>();
-        if(level.isClientSide()) return errors;
 
 
         // Lazy controller registration
         if(!(blockEntity instanceof final AbstractControllerBlockEntity cbe)) return errors; //TODO this might need to be an exception/error log
         cbe.ensureRegistered();
+        flushChanges();
 
 
         // Get controller data
-        final BlockKey controllerKey = new BlockKey(level.dimension(), pos);
-        final ControllerData controllerData = controllers.get(controllerKey);
+        final ControllerData controllerData = index.getController(pos.asLong());
+        if(controllerData == null) return errors;
         final Direction direction = controllerData.direction;
 
 
-        // For each block in the block entry list
-        for(final BlockEntry entry : controllerData.structure.getBlocks()) {
+        // For each block that's currently invalid. The cached flags are up to date after the flush,
+        // so the cost scales with the number of errors rather than the size of the structure
+        final List<BlockEntry> entries = controllerData.structure.getBlocks();
+        final OffsetTable table = controllerData.structure.getOffsetTable(direction);
+        final long origin = pos.asLong();
+        final BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+        for(int trackedIndex = controllerData.nextInvalid(0); trackedIndex != -1; trackedIndex = controllerData.nextInvalid(trackedIndex + 1)) {
+            final int i = controllerData.structure.toBlockIndex(trackedIndex);
+            final BlockEntry entry = entries.get(i);
 
-            // Skip checks if entry allows all blocks
-            if(entry.doesAllowAny()) {
+            // Skip blocks in chunks that are not loaded. Reading them would load the chunk synchronously
+            mutablePos.set(table.worldPos(origin, i));
+            if(!level.hasChunkAt(mutablePos)) {
                 continue;
             }
+            final BlockState currentState = level.getBlockState(mutablePos);
 
-            final BlockPos worldPos = Utils.localToGlobal(entry.getOffset(), pos, direction);
-            final BlockState currentState = level.getBlockState(worldPos);
+            // Skip blocks that match anyway. This only happens if the cached flags are out of sync
+            if(controllerData.structure.validateBlock(i, currentState, direction)) {
+                continue;
+            }
 
             // Check Block Type (incorrect state)
             if(!currentState.is(entry.getCachedBlock())) {
                 final BlockState expectedStateForRender = buildDesiredBlockState(entry, direction);
-                errors.add(new StructureError(worldPos, StructureError.ErrorType.MISSING, entry.getBlock(), null, expectedStateForRender));
+                errors.add(new StructureError(mutablePos.immutable(), StructureError.ErrorType.MISSING, entry.getBlock(), null, expectedStateForRender));
                 continue;
             }
 
@@ -415,7 +1406,7 @@ public class IncrementalStructureValidator {
             final Map<String, String> mismatchedProps = checkProperties(currentState, entry, direction);
             if(!mismatchedProps.isEmpty()) {
                 final BlockState expectedStateForRender = buildDesiredBlockState(entry, direction);
-                errors.add(new StructureError(worldPos, StructureError.ErrorType.WRONG_STATE, entry.getBlock(), mismatchedProps, expectedStateForRender));
+                errors.add(new StructureError(mutablePos.immutable(), StructureError.ErrorType.WRONG_STATE, entry.getBlock(), mismatchedProps, expectedStateForRender));
                 //! continue
             }
         }
@@ -488,27 +1479,37 @@ public class IncrementalStructureValidator {
 
 
     /**
-     * Unregisters all controllers whose structure ID matches the specified identifier.
+     * Unregisters all controllers whose structure ID matches the specified identifier, in every level.
      * <p>
      * This allows them to re-read the data from the Structure instance when needed.
      * <p>
      * Notice:
      *     This method should be called BEFORE a structure is changed.
      *     Doing so after it's changed will break the validation data.
+     * <p>
+     * This must only be called from the server thread.
      * @param identifier The identifier to check for.
      */
     public static void unregisterMatching(final @NotNull String identifier) {
+        for(final IncrementalStructureValidator validator : validators.values()) {
+
+            // Unregister the cached data of each controller whose ID matches the provided identifier
+            //! Use a copy of the list as unregisterController removes controllers from the map
+            final List<BlockPos> matching = new ArrayList<>();
+            for(final ControllerData controllerData : validator.index.getControllers()) {
+                if(controllerData.structureId.equals(identifier)) {
+                    matching.add(controllerData.pos);
+                }
+            }
+            for(final BlockPos pos : matching) {
+                validator.unregisterController(pos);
+            }
 
-        // For each registered controller
-        //! Use a copy of the keys as invalidateStructureCache() calls unregisterController which removes controllers from the map
-        for(final var key : new ArrayList<>(controllers.keySet())) {
-
-            // If the controller's ID matches the provided identifier
-            if(controllers.get(key).structureId.equals(identifier)) {
-
-                // Unregister the cached data
-                final Level level = Cassiopeia.getServer().getLevel(key.dimension);
-                if(level != null) unregisterController(level, key.pos);
+            // Discard the tombstones of the structure, as their flags follow its old block list
+            for(final Tombstone tombstone : validator.tombstones.getAll()) {
+                if(tombstone.structureId.equals(identifier)) {
+                    validator.removeTombstone(tombstone.pos);
+                }
             }
         }
     }
@@ -516,7 +1517,6 @@ public class IncrementalStructureValidator {
 
 
     public static void unregisterAll() {
-        controllers.clear();
-        blocks.clear();
+        validators.clear();
     }
 }
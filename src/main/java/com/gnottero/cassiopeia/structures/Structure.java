@@ -10,12 +10,16 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.block.state.properties.Property;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 
 import org.jetbrains.annotations.NotNull;
 import org.joml.Vector3i;
@@ -28,12 +32,28 @@ import com.gnottero.cassiopeia.utils.Utils;
 
 @SuppressWarnings("java:S2065") // Transient members
 public class Structure {
+
+    // Structures where at least this fraction of the entries allow any block are tracked sparsely
+    private static final double SPARSE_MIN_ANY_FRACTION = 0.5;
+
     private final List<BlockEntry> blocks;
     private String controller;
 
     // Transient data
     private transient boolean initialized = false;
     private transient Block cachedControllerBlock;
+    private transient List<Block> palette = List.of();
+    private transient long contentHash;
+
+    // The sorted block list indices of the constrained entries if the structure is sparse, null otherwise.
+    // Tracked indices are positions in this table; dense structures track every entry and use block list indices directly
+    private transient int[] trackedIndices;
+
+    // The offset tables of each controller facing, indexed by direction ordinal. Built lazily
+    private transient OffsetTable[] offsetTables = new OffsetTable[Direction.values().length];
+
+    // The compiled state matcher of each block of the structure for each controller facing, indexed by direction ordinal. Built lazily
+    private transient StateMatcher[][] matcherTables = new StateMatcher[Direction.values().length][];
 
     // Cache corners for faster in-world operations. Updated whenever a new block is added
     private transient Vector3i minCorner = new Vector3i(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
@@ -76,6 +96,24 @@ public class Structure {
         return blocks;
     }
 
+    /**
+     * Returns the distinct blocks required by the structure's entries. Entries that allow any block are not included.
+     * <p>
+     * Only valid after {@link #ensureInitialized()} is called.
+     */
+    public List<Block> getPalette() {
+        return palette;
+    }
+
+    /**
+     * Returns a hash of the structure's controller and block entries. It only changes if the template changes.
+     * <p>
+     * Only valid after {@link #ensureInitialized()} is called.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
 
     public void addBlock(final BlockEntry entry) {
         this.blocks.add(entry);
@@ -94,12 +132,17 @@ public class Structure {
             }
         }
 
-        // Initialize all the blocks and calculate the corners
+        // Initialize all the blocks, calculate the corners and collect the palette
+        final Set<Block> distinctBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
         for(final BlockEntry entry : blocks) {
             entry.initialize();
             minCorner.min(entry.getOffset());
             maxCorner.max(entry.getOffset());
+            if(!entry.doesAllowAny() && entry.cachedBlock != null) {
+                distinctBlocks.add(entry.cachedBlock);
+            }
         }
+        palette = List.copyOf(distinctBlocks);
 
         // Sort list of blocks to match the xyz order.
         // This is required in order to properly calculate their index from the offset in O(1) time
@@ -109,6 +152,36 @@ public class Structure {
             .thenComparingInt(        entry  -> entry.getOffset().z)
         );
 
+        // Hash the sorted entries. String and Map hashes are stable across runs, so the result can be persisted
+        long hash = Objects.hashCode(controller);
+        for(final BlockEntry entry : blocks) {
+            hash = 31 * hash + Objects.hashCode(entry.block);
+            hash = 31 * hash + entry.offset.x;
+            hash = 31 * hash + entry.offset.y;
+            hash = 31 * hash + entry.offset.z;
+            hash = 31 * hash + Objects.hashCode(entry.properties);
+            hash = 31 * hash + (entry.allowsAny ? 1 : 0);
+        }
+        contentHash = hash;
+
+        // Only track the constrained entries of structures that are mostly made of entries that allow any block
+        int anyCount = 0;
+        for(final BlockEntry entry : blocks) {
+            if(entry.doesAllowAny()) ++anyCount;
+        }
+        if(anyCount > 0 && anyCount >= blocks.size() * SPARSE_MIN_ANY_FRACTION) {
+            trackedIndices = new int[blocks.size() - anyCount];
+            int k = 0;
+            for(int i = 0; i < blocks.size(); ++i) {
+                if(!blocks.get(i).doesAllowAny()) trackedIndices[k++] = i;
+            }
+        }
+        else {
+            trackedIndices = null;
+        }
+        offsetTables = new OffsetTable[Direction.values().length];
+        matcherTables = new StateMatcher[Direction.values().length][];
+
         initialized = true;
     }
 
@@ -174,25 +247,150 @@ public class Structure {
 
 
 
+    /**
+     * Checks if the structure only tracks its constrained entries.
+     * Entries that allow any block always match, so sparse structures don't need to track them.
+     * <p>
+     * Only valid after {@link #ensureInitialized()} is called.
+     */
+    public boolean isSparse() {
+        return trackedIndices != null;
+    }
+
+
+    /**
+     * Returns the number of tracked entries. This is the number of blocks whose validity needs to be cached.
+     * <p>
+     * Only valid after {@link #ensureInitialized()} is called.
+     */
+    public int getTrackedCount() {
+        return trackedIndices == null ? blocks.size() : trackedIndices.length;
+    }
+
+
+    /**
+     * Converts a tracked index to the index of its entry in the block list.
+     * @param trackedIndex The tracked index.
+     * @return The block list index.
+     */
+    public int toBlockIndex(final int trackedIndex) {
+        return trackedIndices == null ? trackedIndex : trackedIndices[trackedIndex];
+    }
+
+
+    /**
+     * Converts the index of an entry in the block list to its tracked index.
+     * @param blockIndex The block list index.
+     * @return The tracked index, or -1 if the entry is not tracked.
+     */
+    public int toTrackedIndex(final int blockIndex) {
+        if(trackedIndices == null) return blockIndex;
+        final int trackedIndex = Arrays.binarySearch(trackedIndices, blockIndex);
+        return trackedIndex >= 0 ? trackedIndex : -1;
+    }
+
+
+
+
+    /**
+     * Returns the offset table of the structure for a controller facing, building it if needed.
+     * <p>
+     * Only valid after {@link #ensureInitialized()} is called.
+     * @param facing The facing of the controller.
+     * @return The offset table.
+     */
+    public @NotNull OffsetTable getOffsetTable(final @NotNull Direction facing) {
+        OffsetTable table = offsetTables[facing.ordinal()];
+        if(table == null) {
+            table = new OffsetTable(this, facing);
+            offsetTables[facing.ordinal()] = table;
+        }
+        return table;
+    }
+
+
+
+
     //TODO add documentation
     public boolean validateBlock(final @NotNull Vector3i offset, final @NotNull BlockState currentState, final @NotNull Direction direction) {
-        final int index = blockOffsetToIndex(offset);
-        final BlockEntry entry = blocks.get(index);
-        final Block desiredBlock = entry.cachedBlock;
+        return validateBlock(blockOffsetToIndex(offset), currentState, direction);
+    }
+
 
-        // Return true if entry allows any block
-        if(entry.doesAllowAny()) {
-            return true;
+    /**
+     * Checks if a block state matches the entry at the specified index of the block list.
+     * @param index The index of the entry in the block list.
+     * @param currentState The block state to check.
+     * @param direction The facing of the controller.
+     * @return True if the block state matches the entry, false otherwise.
+     */
+    public boolean validateBlock(final int index, final @NotNull BlockState currentState, final @NotNull Direction direction) {
+        return getStateMatchers(direction)[index].test(currentState);
+    }
+
+
+    /**
+     * Returns the compiled state matcher of each block of the structure for a controller facing, building them if needed.
+     * <p>
+     * Entries with the same block and properties share the same matcher.
+     * Only valid after {@link #ensureInitialized()} is called.
+     * @param direction The facing of the controller.
+     * @return The matchers, indexed like the block list.
+     */
+    private StateMatcher @NotNull [] getStateMatchers(final @NotNull Direction direction) {
+        StateMatcher[] matchers = matcherTables[direction.ordinal()];
+        if(matchers == null) {
+            final Map<List<Object>, StateMatcher> compiled = new HashMap<>();
+            matchers = new StateMatcher[blocks.size()];
+            for(int i = 0; i < matchers.length; ++i) {
+                final BlockEntry entry = blocks.get(i);
+                if(entry.doesAllowAny()) {
+                    matchers[i] = StateMatcher.ANY;
+                }
+                else if(entry.cachedBlock == null) {
+                    matchers[i] = StateMatcher.NONE;
+                }
+                else {
+                    matchers[i] = compiled.computeIfAbsent(List.of(entry.cachedBlock, entry.cachedProperties), k -> compileMatcher(entry, direction));
+                }
+            }
+            matcherTables[direction.ordinal()] = matchers;
         }
+        return matchers;
+    }
+
 
-        // Check Block Type
-        if(!currentState.is(desiredBlock)) {
-            return false;
+    /**
+     * Compiles the block and property checks of an entry into a set of matching block state IDs.
+     * <p>
+     * Only the states of the entry's block can match, so each of them is tested once with the original checks.
+     * This keeps the rules (including the rotation of facing properties) exactly the same.
+     * @param entry The block entry.
+     * @param direction The facing of the controller.
+     * @return The matcher.
+     */
+    private StateMatcher compileMatcher(final @NotNull BlockEntry entry, final @NotNull Direction direction) {
+        final Block desiredBlock = entry.cachedBlock;
+
+        // Find the range of state IDs of the block
+        final List<BlockState> states = desiredBlock.getStateDefinition().getPossibleStates();
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for(final BlockState state : states) {
+            final int id = Block.getId(state);
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
         }
 
-        // Check Properties
-        final Map<String, String> mismatchedProps = checkProperties(currentState, entry, direction);
-        return mismatchedProps.isEmpty();
+        // Set the bit of each state that passes the checks
+        final long[] bits = new long[(maxId - minId + 64) >>> 6];
+        for(final BlockState state : states) {
+            if(checkProperties(state, entry, direction).isEmpty()) {
+                final int bit = Block.getId(state) - minId;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return new StateMatcher(minId, bits);
     }
 
 
@@ -232,6 +430,117 @@ public class Structure {
 
 
 
+    /**
+     * The world-space layout of a structure for a specific controller facing.
+     * <p>
+     * It stores the rotated offset of each block of the structure as a packed position delta,
+     * and the linear coefficients that map a world delta back to a block index,
+     * which lets in-world loops run without rotating coordinates or allocating vectors.
+     */
+    public static final class OffsetTable {
+        private final long[] deltas;
+
+        // The block index of the controller's position (which might be outside of the structure) and the index step of each world axis
+        private final int originIndex;
+        private final int xStep;
+        private final int yStep;
+        private final int zStep;
+
+
+        private OffsetTable(final @NotNull Structure structure, final @NotNull Direction facing) {
+            final Vector3i min = structure.minCorner;
+            final Vector3i max = structure.maxCorner;
+
+            // Rotate each block's offset once and pack it like a BlockPos
+            final int size = structure.blocks.size();
+            deltas = new long[size];
+            for(int i = 0; i < size; ++i) {
+                final Vector3i rotated = Utils.rotateCoords(structure.blockIndexToOffset(i), facing);
+                deltas[i] = BlockPos.asLong(rotated.x, rotated.y, rotated.z);
+            }
+
+            // The block index is a linear function of the local offset, and the local offset is a rotation of the world delta.
+            // Find the index step of each world axis by inverse-rotating the axis' unit vector
+            final int zStride = 1;
+            final int yStride = (max.z - min.z + 1) * zStride;
+            final int xStride = (max.y - min.y + 1) * yStride;
+            final Vector3i wx = Utils.inverseRotateCoords(new Vector3i(1, 0, 0), facing);
+            final Vector3i wy = Utils.inverseRotateCoords(new Vector3i(0, 1, 0), facing);
+            final Vector3i wz = Utils.inverseRotateCoords(new Vector3i(0, 0, 1), facing);
+            xStep = wx.x * xStride + wx.y * yStride + wx.z * zStride;
+            yStep = wy.x * xStride + wy.y * yStride + wy.z * zStride;
+            zStep = wz.x * xStride + wz.y * yStride + wz.z * zStride;
+            originIndex = -min.x * xStride - min.y * yStride - min.z * zStride;
+        }
+
+
+        /**
+         * Returns the packed world position of a block of the structure.
+         * @param origin The packed position of the controller.
+         * @param index The index of the block in the block list.
+         * @return The packed world position of the block.
+         */
+        public long worldPos(final long origin, final int index) {
+            final long delta = deltas[index];
+            return BlockPos.offset(origin, BlockPos.getX(delta), BlockPos.getY(delta), BlockPos.getZ(delta));
+        }
+
+
+        /**
+         * Returns the block index of a world position. The position must be inside of the structure's bounding box.
+         * @param dx The x coordinate of the position relative to the controller.
+         * @param dy The y coordinate of the position relative to the controller.
+         * @param dz The z coordinate of the position relative to the controller.
+         * @return The index of the block in the block list.
+         */
+        public int indexOf(final int dx, final int dy, final int dz) {
+            return originIndex + dx * xStep + dy * yStep + dz * zStep;
+        }
+
+
+        /** Returns the change of the block index when moving one block along the world x axis. */
+        public int getXStep() { return xStep; }
+    }
+
+
+
+
+    /**
+     * A set of block states that satisfy a block entry, stored as a bitset over a range of global block state IDs.
+     * <p>
+     * Testing a block state costs a single bit test.
+     */
+    public static final class StateMatcher {
+        /** A matcher that accepts every block state. */
+        public static final StateMatcher ANY = new StateMatcher(0, null);
+        /** A matcher that rejects every block state. */
+        public static final StateMatcher NONE = new StateMatcher(0, new long[0]);
+
+        private final int minId;
+        private final long[] bits;
+
+
+        private StateMatcher(final int minId, final long[] bits) {
+            this.minId = minId;
+            this.bits = bits;
+        }
+
+
+        /**
+         * Checks if a block state satisfies the entry this matcher was compiled from.
+         * @param state The block state.
+         * @return True if the state matches, false otherwise.
+         */
+        public boolean test(final @NotNull BlockState state) {
+            if(bits == null) return true;
+            final int bit = Block.getId(state) - minId;
+            return bit >= 0 && bit < bits.length << 6 && (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+    }
+
+
+
+
     /**
      * A class that describes the issues of an incorrect block in a multiblock structure.
      * <p>
@@ -0,0 +1,63 @@
+package com.gnottero.cassiopeia.structures;
+
+import org.jetbrains.annotations.NotNull;
+
+import net.fabricmc.fabric.api.event.Event;
+import net.fabricmc.fabric.api.event.EventFactory;
+import net.minecraft.server.level.ServerLevel;
+
+import com.gnottero.cassiopeia.content.block.entity.AbstractControllerBlockEntity;
+
+
+
+
+/**
+ * Events published by the structure validator.
+ * <p>
+ * Listeners are always invoked on the server thread.
+ */
+public final class StructureEvents {
+    private StructureEvents() {}
+
+
+
+
+    /** The state of a controller's structure, as seen by the validator. */
+    public enum StructureState {
+        /** All the blocks of the structure match. */
+        FORMED,
+        /** At least one loaded block of the structure doesn't match. */
+        BROKEN,
+        /** The loaded blocks match, but part of the structure is in chunks that haven't been loaded yet. */
+        PARTIALLY_UNLOADED,
+        /** The controller is not registered, either because it was never validated or because it was removed or evicted. */
+        UNREGISTERED
+    }
+
+
+
+
+    @FunctionalInterface
+    public interface StateChanged {
+
+        /**
+         * Called when the state of a controller's structure changes.
+         * <p>
+         * This only fires on transitions, e.g. when the number of valid blocks reaches or leaves the size of the structure.
+         * @param level The level of the controller.
+         * @param controller The block entity of the controller.
+         * @param state The new state.
+         */
+        void onStateChanged(@NotNull ServerLevel level, @NotNull AbstractControllerBlockEntity controller, @NotNull StructureState state);
+    }
+
+
+    /**
+     * Fired when the state of a registered controller's structure changes, and when a controller is registered or unregistered.
+     */
+    public static final Event<StateChanged> STATE_CHANGED = EventFactory.createArrayBacked(StateChanged.class, listeners -> (level, controller, state) -> {
+        for(final StateChanged listener : listeners) {
+            listener.onStateChanged(level, controller, state);
+        }
+    });
+}
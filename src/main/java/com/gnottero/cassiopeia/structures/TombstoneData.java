@@ -0,0 +1,231 @@
+package com.gnottero.cassiopeia.structures;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.world.level.saveddata.SavedDataType;
+
+import com.gnottero.cassiopeia.Cassiopeia;
+import com.gnottero.cassiopeia.structures.IncrementalStructureValidator.ControllerData;
+
+
+
+
+/**
+ * The tombstones of the controllers evicted from a level, saved with the level so their snapshots can be trusted after a restart.
+ * <p>
+ * Tombstones are kept in eviction order, which allows the oldest ones to be dropped when there are too many.
+ * <p>
+ * The data is marked as unclean while the server runs and as clean when it stops.
+ * Tombstones loaded from unclean data are discarded, as the server might have saved block changes in their bounding box before crashing.
+ */
+final class TombstoneData extends SavedData {
+
+    /**
+     * The footprint of a controller that was evicted when its chunk was unloaded or the server stopped.
+     * <p>
+     * A tombstone exists as long as no block in its bounding box changed since the eviction,
+     * which is what allows the controller's saved {@link ValiditySnapshot} to be trusted when it's loaded again.
+     * Only the snapshot with the same stamp is trusted, as the chunk can still contain the one written by an earlier save.
+     */
+    static final class Tombstone {
+        private static final Codec<Tombstone> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+            Codec.LONG.fieldOf("pos").forGetter(t -> t.pos),
+            Codec.STRING.fieldOf("structure").forGetter(t -> t.structureId),
+            BlockPos.CODEC.fieldOf("min").forGetter(t -> new BlockPos(t.minX, t.minY, t.minZ)),
+            BlockPos.CODEC.fieldOf("max").forGetter(t -> new BlockPos(t.maxX, t.maxY, t.maxZ)),
+            Codec.LONG.fieldOf("stamp").forGetter(t -> t.stamp)
+        ).apply(instance, Tombstone::new));
+
+        final long pos;
+        final String structureId;
+        final int minX;
+        final int minY;
+        final int minZ;
+        final int maxX;
+        final int maxY;
+        final int maxZ;
+        final long stamp;
+
+        // The structure of the controller, whose palette is counted in the validator's palette. Resolved when the tombstone is loaded
+        @Nullable Structure structure;
+
+        Tombstone(final @NotNull ControllerData controllerData, final long stamp) {
+            this.pos = controllerData.pos.asLong();
+            this.structureId = controllerData.structureId;
+            this.minX = controllerData.minX;
+            this.minY = controllerData.minY;
+            this.minZ = controllerData.minZ;
+            this.maxX = controllerData.maxX;
+            this.maxY = controllerData.maxY;
+            this.maxZ = controllerData.maxZ;
+            this.stamp = stamp;
+            this.structure = controllerData.structure;
+        }
+
+        private Tombstone(final long pos, final @NotNull String structureId, final @NotNull BlockPos min, final @NotNull BlockPos max, final long stamp) {
+            this.pos = pos;
+            this.structureId = structureId;
+            this.minX = min.getX();
+            this.minY = min.getY();
+            this.minZ = min.getZ();
+            this.maxX = max.getX();
+            this.maxY = max.getY();
+            this.maxZ = max.getZ();
+            this.stamp = stamp;
+        }
+
+        boolean contains(final int x, final int y, final int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+    }
+
+
+
+
+    private static final Codec<TombstoneData> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+        Codec.LONG.fieldOf("last_stamp").forGetter(d -> d.lastStamp),
+        Codec.BOOL.fieldOf("clean").forGetter(d -> d.clean),
+        Tombstone.CODEC.listOf().fieldOf("tombstones").forGetter(d -> new ArrayList<>(d.tombstones.values()))
+    ).apply(instance, TombstoneData::new));
+
+    static final SavedDataType<TombstoneData> TYPE = new SavedDataType<>(Cassiopeia.MOD_ID + "_tombstones", TombstoneData::new, CODEC, null);
+
+
+    // The tombstones indexed by controller position, in eviction order, and by each chunk their bounding box intersects
+    private final Long2ObjectLinkedOpenHashMap<Tombstone> tombstones = new Long2ObjectLinkedOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<List<Tombstone>> tombstoneChunks = new Long2ObjectOpenHashMap<>();
+
+    // The stamp of the last snapshot. Saved so the stamps of a level are never reused, even across restarts
+    private long lastStamp;
+
+    // Whether the data was saved by a server that stopped cleanly
+    private boolean clean;
+
+
+
+
+    TombstoneData() {
+        this(0L, true, List.of());
+    }
+
+
+    private TombstoneData(final long lastStamp, final boolean clean, final @NotNull List<Tombstone> tombstones) {
+        this.lastStamp = lastStamp;
+        this.clean = clean;
+        for(final Tombstone tombstone : tombstones) {
+            add(tombstone);
+        }
+    }
+
+
+
+
+    boolean isEmpty() {
+        return tombstones.isEmpty();
+    }
+
+
+    int size() {
+        return tombstones.size();
+    }
+
+
+    /**
+     * Returns a new snapshot stamp. Stamps are never 0, which is the stamp of snapshots saved before stamps existed.
+     */
+    long nextStamp() {
+        if(++lastStamp == 0L) ++lastStamp;
+        setDirty();
+        return lastStamp;
+    }
+
+
+    boolean isClean() {
+        return clean;
+    }
+
+
+    void setClean(final boolean clean) {
+        this.clean = clean;
+        setDirty();
+    }
+
+
+
+
+    /**
+     * Adds a tombstone. The controller must not have one already.
+     * @param tombstone The tombstone.
+     */
+    void add(final @NotNull Tombstone tombstone) {
+        tombstones.put(tombstone.pos, tombstone);
+        for(int cx = tombstone.minX >> 4; cx <= tombstone.maxX >> 4; ++cx) {
+            for(int cz = tombstone.minZ >> 4; cz <= tombstone.maxZ >> 4; ++cz) {
+                tombstoneChunks.computeIfAbsent(ChunkPos.asLong(cx, cz), k -> new ArrayList<>()).add(tombstone);
+            }
+        }
+        setDirty();
+    }
+
+
+    /**
+     * Removes the tombstone of a controller.
+     * @param pos The position of the controller.
+     * @return The removed tombstone, or null if the controller had none.
+     */
+    @Nullable Tombstone remove(final long pos) {
+        final Tombstone tombstone = tombstones.remove(pos);
+        if(tombstone == null) return null;
+
+        for(int cx = tombstone.minX >> 4; cx <= tombstone.maxX >> 4; ++cx) {
+            for(int cz = tombstone.minZ >> 4; cz <= tombstone.maxZ >> 4; ++cz) {
+                final long chunkPos = ChunkPos.asLong(cx, cz);
+                final List<Tombstone> chunkTombstones = tombstoneChunks.get(chunkPos);
+                if(chunkTombstones != null && chunkTombstones.remove(tombstone) && chunkTombstones.isEmpty()) {
+                    tombstoneChunks.remove(chunkPos);
+                }
+            }
+        }
+        setDirty();
+        return tombstone;
+    }
+
+
+    /**
+     * Returns the position of the controller that was evicted first. The data must not be empty.
+     */
+    long getOldest() {
+        return tombstones.firstLongKey();
+    }
+
+
+    /**
+     * Returns the tombstones whose bounding box intersects a chunk.
+     * @param chunkPos The packed position of the chunk.
+     * @return The tombstones, or null if there are none.
+     */
+    @Nullable List<Tombstone> getChunk(final long chunkPos) {
+        return tombstoneChunks.get(chunkPos);
+    }
+
+
+    /**
+     * Returns a copy of all the tombstones, in eviction order.
+     */
+    @NotNull List<Tombstone> getAll() {
+        return new ArrayList<>(tombstones.values());
+    }
+}
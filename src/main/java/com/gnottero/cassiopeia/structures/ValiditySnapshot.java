@@ -0,0 +1,102 @@
+package com.gnottero.cassiopeia.structures;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.core.Direction;
+import net.minecraft.nbt.CompoundTag;
+
+
+
+
+/**
+ * A copy of the validity flags of a controller, saved in its block entity when the controller is evicted or the server stops.
+ * <p>
+ * When the controller is loaded again, the flags can be restored instead of rescanning the structure,
+ * as long as the snapshot matches the current template and controller facing and no block of the structure changed in the meantime.
+ * <p>
+ * Each snapshot carries a stamp that identifies it. Only the snapshot whose stamp matches the controller's tombstone is trusted,
+ * so copies written by older saves are rejected even if the chunk is loaded again before the new one is saved.
+ */
+public final class ValiditySnapshot {
+    private static final String TEMPLATE_HASH_KEY = "template_hash";
+    private static final String FACING_KEY = "facing";
+    private static final String SIZE_KEY = "size";
+    private static final String FLAGS_KEY = "flags";
+    private static final String STAMP_KEY = "stamp";
+
+    private final long templateHash;
+    private final Direction facing;
+    private final int size;
+    private final long[] flags;
+    private final long stamp;
+
+
+
+
+    public ValiditySnapshot(final long templateHash, final @NotNull Direction facing, final int size, final long @NotNull [] flags, final long stamp) {
+        this.templateHash = templateHash;
+        this.facing = facing;
+        this.size = size;
+        this.flags = flags;
+        this.stamp = stamp;
+    }
+
+
+    /**
+     * Returns the packed validity flags, indexed like the structure's block list.
+     */
+    public long @NotNull [] getFlags() {
+        return flags;
+    }
+
+
+    /**
+     * Returns the stamp of the snapshot, unique among the snapshots created in its level.
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+
+    /**
+     * Checks if the snapshot was taken from a controller with the same template and facing.
+     * @param structure The current structure of the controller. Must be initialized.
+     * @param direction The current facing of the controller.
+     * @return True if the snapshot can be applied to the controller, false otherwise.
+     */
+    public boolean matches(final @NotNull Structure structure, final @NotNull Direction direction) {
+        return templateHash == structure.getContentHash()
+            && facing == direction
+            && size == structure.getTrackedCount()
+            && flags.length == (size + 63) >>> 6
+        ;
+    }
+
+
+
+
+    public @NotNull CompoundTag toTag() {
+        final CompoundTag tag = new CompoundTag();
+        tag.putLong(TEMPLATE_HASH_KEY, templateHash);
+        tag.putString(FACING_KEY, facing.getName());
+        tag.putInt(SIZE_KEY, size);
+        tag.putLongArray(FLAGS_KEY, flags);
+        tag.putLong(STAMP_KEY, stamp);
+        return tag;
+    }
+
+
+    /**
+     * Reads a snapshot from its NBT representation.
+     * @param tag The tag.
+     * @return The snapshot, or null if the tag is incomplete.
+     */
+    public static @Nullable ValiditySnapshot fromTag(final @NotNull CompoundTag tag) {
+        final Direction facing = Direction.byName(tag.getStringOr(FACING_KEY, ""));
+        final long[] flags = tag.getLongArray(FLAGS_KEY).orElse(null);
+        final long stamp = tag.getLongOr(STAMP_KEY, 0L);
+        if(facing == null || flags == null || stamp == 0L) return null;
+        return new ValiditySnapshot(tag.getLongOr(TEMPLATE_HASH_KEY, 0L), facing, tag.getIntOr(SIZE_KEY, -1), flags, stamp);
+    }
+}
@@ -0,0 +1,135 @@
+package com.gnottero.cassiopeia.content.machine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+
+
+/**
+ * Checks the closed-form catch-up of {@link MachineCatchUp} against a machine ticked once per tick.
+ */
+class MachineCatchUpTest {
+
+    /**
+     * A furnace-like machine ticked once per tick, following the rules of the handlers' computeTick.
+     */
+    private static final class Machine {
+        int litTime;
+        int fuelCount;
+        int progress;
+        int crafts = 0;
+        int fuelUsed = 0;
+        final int burnTime;
+        final int totalTime;
+        final int maxCrafts;
+
+        Machine(final int litTime, final int fuelCount, final int burnTime, final int progress, final int totalTime, final int maxCrafts) {
+            this.litTime = litTime;
+            this.fuelCount = fuelCount;
+            this.burnTime = burnTime;
+            this.progress = progress;
+            this.totalTime = totalTime;
+            this.maxCrafts = maxCrafts;
+        }
+
+        void tick() {
+            if(litTime > 0) {
+                litTime--;
+            }
+            final boolean canProcess = crafts < maxCrafts;
+            if(litTime <= 0 && fuelCount > 0 && burnTime > 0 && canProcess) {
+                litTime = burnTime;
+                fuelCount--;
+                fuelUsed++;
+            }
+            if(litTime > 0 && canProcess) {
+                if(++progress >= totalTime) {
+                    progress = 0;
+                    crafts++;
+                }
+            }
+            else if(litTime <= 0 && progress > 0) {
+                progress = Math.max(0, progress - 2);
+            }
+        }
+    }
+
+
+
+
+    @Test
+    void processMatchesTickingEveryTick() {
+        for(int litTime = 0; litTime <= 5; litTime++) {
+            for(int fuelCount = 0; fuelCount <= 3; fuelCount++) {
+                for(int burnTime = 0; burnTime <= 4; burnTime++) {
+                    for(int totalTime = 1; totalTime <= 5; totalTime++) {
+                        for(int progress = 0; progress < totalTime; progress++) {
+                            for(int maxCrafts = 1; maxCrafts <= 3; maxCrafts++) {
+                                for(int ticks = 0; ticks <= 30; ticks++) {
+                                    checkProcess(litTime, fuelCount, burnTime, progress, totalTime, maxCrafts, ticks);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Test
+    void processHandlesLongCatchUps() {
+        checkProcess(0, 64, 1600, 0, 200, 1000, Long.MAX_VALUE);
+        checkProcess(37, 12, 300, 150, 200, 20, Long.MAX_VALUE);
+    }
+
+
+    private static void checkProcess(final int litTime, final int fuelCount, final int burnTime, final int progress, final int totalTime, final int maxCrafts, final long ticks) {
+        final String params = String.format("litTime=%d fuelCount=%d burnTime=%d progress=%d totalTime=%d maxCrafts=%d ticks=%d",
+            litTime, fuelCount, burnTime, progress, totalTime, maxCrafts, ticks);
+        final MachineCatchUp.Phase phase = MachineCatchUp.process(litTime, fuelCount, burnTime, progress, totalTime, maxCrafts, ticks);
+
+        final Machine machine = new Machine(litTime, fuelCount, burnTime, progress, totalTime, maxCrafts);
+        for(long i = 0; i < phase.ticks(); i++) {
+            machine.tick();
+        }
+        assertEquals(machine.crafts, phase.crafts(), params);
+        assertEquals(machine.fuelUsed, phase.fuelUsed(), params);
+        assertEquals(machine.litTime, phase.litTime(), params);
+        assertEquals(machine.progress, phase.progress(), params);
+
+        // The phase ends when the time runs out, the crafts are done or the next tick is unlit
+        final boolean outOfFuel = (machine.fuelCount == 0 || burnTime == 0) && machine.litTime <= 1;
+        assertTrue(phase.ticks() <= ticks, params);
+        assertTrue(phase.ticks() == ticks || phase.crafts() == maxCrafts || outOfFuel, params);
+    }
+
+
+
+
+    @Test
+    void idleMatchesTickingEveryTick() {
+        for(int litTime = 0; litTime <= 6; litTime++) {
+            for(int progress = 0; progress <= 10; progress++) {
+                for(int ticks = 0; ticks <= 20; ticks++) {
+                    final String params = String.format("litTime=%d progress=%d ticks=%d", litTime, progress, ticks);
+                    final MachineCatchUp.Phase phase = MachineCatchUp.idle(litTime, progress, ticks);
+
+                    // A machine that can't process never consumes fuel nor crafts
+                    final Machine machine = new Machine(litTime, 0, 0, progress, Integer.MAX_VALUE, 0);
+                    for(int i = 0; i < ticks; i++) {
+                        machine.tick();
+                    }
+                    assertEquals(0, phase.crafts(), params);
+                    assertEquals(0, phase.fuelUsed(), params);
+                    assertEquals(machine.litTime, phase.litTime(), params);
+                    assertEquals(machine.progress, phase.progress(), params);
+                    assertEquals(ticks, phase.ticks(), params);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.gnottero.cassiopeia.content.recipe;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+
+
+
+/**
+ * Checks the keys of the unordered item pairs that index the alloying recipes of {@link RecipeIndex}.
+ */
+class RecipeIndexTest {
+
+    @Test
+    void pairKeyIgnoresTheSlotOrder() {
+        for(int a = 0; a < 200; a++) {
+            for(int b = 0; b < 200; b++) {
+                assertEquals(RecipeIndex.pairKey(a, b), RecipeIndex.pairKey(b, a), a + ", " + b);
+            }
+        }
+    }
+
+
+    @Test
+    void pairKeyIsUniquePerPair() {
+        final int n = 200;
+        final LongOpenHashSet keys = new LongOpenHashSet();
+        for(int a = 0; a < n; a++) {
+            for(int b = a; b < n; b++) {
+                keys.add(RecipeIndex.pairKey(a, b));
+            }
+        }
+        assertEquals(n * (n + 1) / 2, keys.size());
+    }
+
+
+    @Test
+    void pairKeyKeepsLargeIdsApart() {
+        final int max = Integer.MAX_VALUE;
+        assertEquals(RecipeIndex.pairKey(max, max - 1), RecipeIndex.pairKey(max - 1, max));
+        assertNotEquals(RecipeIndex.pairKey(max, max), RecipeIndex.pairKey(max - 1, max));
+        assertNotEquals(RecipeIndex.pairKey(0, max), RecipeIndex.pairKey(1, max));
+        assertNotEquals(RecipeIndex.pairKey(0, max), RecipeIndex.pairKey(0, 0));
+    }
+}
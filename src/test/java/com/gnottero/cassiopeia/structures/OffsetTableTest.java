@@ -0,0 +1,105 @@
+package com.gnottero.cassiopeia.structures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Vector3i;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+
+import com.gnottero.cassiopeia.utils.Utils;
+
+
+
+
+/**
+ * Checks that {@link Structure.OffsetTable} agrees with rotating the offsets of the blocks one by one, for every facing.
+ */
+class OffsetTableTest {
+
+    // An asymmetric box, so that every facing maps it differently
+    private static final Vector3i MIN = new Vector3i(-1, 0, -2);
+    private static final Vector3i MAX = new Vector3i(2, 1, 0);
+    private static final BlockPos ORIGIN = new BlockPos(100, 64, -30);
+
+    private static Structure structure;
+
+
+
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+
+        final List<Structure.BlockEntry> blocks = new ArrayList<>();
+        for(int x = MIN.x; x <= MAX.x; x++) {
+            for(int y = MIN.y; y <= MAX.y; y++) {
+                for(int z = MIN.z; z <= MAX.z; z++) {
+                    blocks.add(new Structure.BlockEntry(new Vector3i(x, y, z)));
+                }
+            }
+        }
+        structure = new Structure(blocks, "minecraft:furnace");
+        structure.ensureInitialized();
+    }
+
+
+
+
+    @Test
+    void worldPosMatchesRotatedOffsets() {
+        for(final Direction facing : Direction.values()) {
+            final Structure.OffsetTable table = structure.getOffsetTable(facing);
+            for(int i = 0; i < structure.getBlocks().size(); i++) {
+                final Vector3i rotated = Utils.rotateCoords(structure.blockIndexToOffset(i), facing);
+                assertEquals(ORIGIN.offset(rotated.x, rotated.y, rotated.z).asLong(), table.worldPos(ORIGIN.asLong(), i), facing + " " + i);
+            }
+        }
+    }
+
+
+    @Test
+    void indexOfInvertsWorldPos() {
+        for(final Direction facing : Direction.values()) {
+            final Structure.OffsetTable table = structure.getOffsetTable(facing);
+            for(int i = 0; i < structure.getBlocks().size(); i++) {
+                final long pos = table.worldPos(ORIGIN.asLong(), i);
+                final int dx = BlockPos.getX(pos) - ORIGIN.getX();
+                final int dy = BlockPos.getY(pos) - ORIGIN.getY();
+                final int dz = BlockPos.getZ(pos) - ORIGIN.getZ();
+                assertEquals(i, table.indexOf(dx, dy, dz), facing + " " + i);
+            }
+        }
+    }
+
+
+    @Test
+    void xStepMovesAlongWorldX() {
+        for(final Direction facing : Direction.values()) {
+            final Structure.OffsetTable table = structure.getOffsetTable(facing);
+            final Long2IntOpenHashMap indices = new Long2IntOpenHashMap();
+            indices.defaultReturnValue(-1);
+            for(int i = 0; i < structure.getBlocks().size(); i++) {
+                indices.put(table.worldPos(ORIGIN.asLong(), i), i);
+            }
+
+            // Every pair of blocks one step apart along the world x axis is one x step apart in the block list
+            for(int i = 0; i < structure.getBlocks().size(); i++) {
+                final int next = indices.get(BlockPos.offset(table.worldPos(ORIGIN.asLong(), i), 1, 0, 0));
+                if(next != -1) {
+                    assertEquals(table.getXStep(), next - i, facing + " " + i);
+                }
+            }
+        }
+    }
+}